@@ -0,0 +1,52 @@
+package com.cncoderx.launcher;
+
+import android.content.ComponentName;
+import android.content.pm.LauncherActivityInfo;
+import android.os.UserHandle;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The launchable activities of some profiles, each queried with a single
+ * {@link android.content.pm.LauncherApps#getActivityList} call, so that resolving many
+ * components doesn't cost a binder call each.
+ *
+ * It is filled on one thread and only read once it is handed to others.
+ */
+final class ActivityIndex {
+    private final HashMap<UserHandle, List<LauncherActivityInfo>> mActivities =
+            new HashMap<UserHandle, List<LauncherActivityInfo>>();
+    private final HashMap<UserHandle, HashMap<ComponentName, LauncherActivityInfo>> mByComponent =
+            new HashMap<UserHandle, HashMap<ComponentName, LauncherActivityInfo>>();
+
+    void put(UserHandle user, List<LauncherActivityInfo> activities) {
+        HashMap<ComponentName, LauncherActivityInfo> byComponent =
+                new HashMap<ComponentName, LauncherActivityInfo>(activities.size() * 2);
+        for (LauncherActivityInfo info : activities) {
+            byComponent.put(info.getComponentName(), info);
+        }
+        mActivities.put(user, activities);
+        mByComponent.put(user, byComponent);
+    }
+
+    /** Returns whether the activities of "user" are known. */
+    boolean contains(UserHandle user) {
+        return mActivities.containsKey(user);
+    }
+
+    /**
+     * Returns the activities of "user" in the order they were listed, or null if they weren't
+     * queried. The list must not be modified.
+     */
+    List<LauncherActivityInfo> getActivities(UserHandle user) {
+        return mActivities.get(user);
+    }
+
+    /** Returns the launchable activity "componentName" of "user", or null. */
+    LauncherActivityInfo get(ComponentName componentName, UserHandle user) {
+        HashMap<ComponentName, LauncherActivityInfo> byComponent = mByComponent.get(user);
+        return byComponent != null && componentName != null
+                ? byComponent.get(componentName) : null;
+    }
+}
@@ -108,8 +108,7 @@ class AllAppsList {
                 data.remove(i);
             }
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        mIconCache.removePackage(packageName, user);
     }
 
     /**
@@ -120,6 +119,8 @@ class AllAppsList {
                 context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
         final List<LauncherActivityInfo> matches = launcherApps.getActivityList(packageName,
                 user);
+        // Only the icons of this package need to be reloaded
+        mIconCache.removePackage(packageName, user);
         if (matches.size() > 0) {
             // Find disabled/removed activities and remove them from data and add them
             // to the removed list.
@@ -130,7 +131,6 @@ class AllAppsList {
                         && packageName.equals(component.getPackageName())) {
                     if (!findActivity(matches, component, user)) {
                         removed.add(applicationInfo);
-                        mIconCache.remove(component);
                         data.remove(i);
                     }
                 }
@@ -149,7 +149,6 @@ class AllAppsList {
                     add(new ApplicationInfo(info, user,
                             mIconCache, null));
                 } else {
-                    mIconCache.remove(applicationInfo.componentName);
                     mIconCache.getTitleAndIcon(applicationInfo, info, null);
                     modified.add(applicationInfo);
                 }
@@ -162,7 +161,6 @@ class AllAppsList {
                 if (user.equals(applicationInfo.user)
                         && packageName.equals(component.getPackageName())) {
                     removed.add(applicationInfo);
-                    mIconCache.remove(component);
                     data.remove(i);
                 }
             }
@@ -63,6 +63,11 @@ class ApplicationInfo extends ItemInfo {
      */
     public ApplicationInfo(LauncherActivityInfo info, UserHandle user, IconCache iconCache,
             HashMap<Object, CharSequence> labelCache) {
+        this(info, user, iconCache, labelCache, false);
+    }
+
+    public ApplicationInfo(LauncherActivityInfo info, UserHandle user, IconCache iconCache,
+            HashMap<Object, CharSequence> labelCache, boolean useLowResIcon) {
 
         this.componentName = info.getComponentName();
 
@@ -74,7 +79,7 @@ class ApplicationInfo extends ItemInfo {
             flags |= UPDATED_SYSTEM_APP_FLAG;
         }
         firstInstallTime = info.getFirstInstallTime();
-        iconCache.getTitleAndIcon(this, info, labelCache);
+        iconCache.getTitleAndIcon(this, info, labelCache, useLowResIcon);
         intent = new Intent(Intent.ACTION_MAIN);
         intent.addCategory(Intent.CATEGORY_LAUNCHER);
         intent.setComponent(info.getComponentName());
@@ -0,0 +1,56 @@
+package com.cncoderx.launcher;
+
+import android.graphics.Bitmap;
+
+/**
+ * Interns bitmaps by their pixels. Many apps have several launcher activities with the same
+ * icon, and every missing icon renders the same default icon; with this they all share one
+ * bitmap.
+ */
+class BitmapInterner extends Interner<Bitmap> {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final ThreadLocal<int[]> sRow = new ThreadLocal<int[]>();
+
+    @Override
+    protected long hash(Bitmap value) {
+        return hashPixels(value);
+    }
+
+    /**
+     * Returns an FNV-1a-style 64-bit hash over the width, the height and the ARGB ints of
+     * "value", the same for bitmaps that are {@link Bitmap#sameAs}. The hash is persisted
+     * with the icon, see {@link LauncherSettings.Shortcuts#ICON_HASH}, so it must not change.
+     */
+    static long hashPixels(Bitmap value) {
+        final int width = value.getWidth();
+        final int height = value.getHeight();
+        int[] row = sRow.get();
+        if (row == null || row.length < width) {
+            row = new int[width];
+            sRow.set(row);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = (hash ^ width) * FNV_PRIME;
+        hash = (hash ^ height) * FNV_PRIME;
+        // One row at a time, icons can be large and the hash must not allocate their size
+        for (int y = 0; y < height; y++) {
+            value.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                hash = (hash ^ row[x]) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    protected boolean sameContent(Bitmap a, Bitmap b) {
+        return a.sameAs(b);
+    }
+
+    @Override
+    protected int sizeOf(Bitmap value) {
+        return value.getAllocationByteCount();
+    }
+}
@@ -52,6 +52,8 @@ public class CellLayout extends ViewGroup {
     int[] mTempLocation = new int[2];
 
     boolean[][] mOccupied;
+    // The same cells as mOccupied, for placement queries that test whole spans
+    private OccupancyGrid mOccupiedGrid;
     boolean[][] mTmpOccupied;
     private boolean mLastDownOnOccupiedCell = false;
 
@@ -161,6 +163,7 @@ public class CellLayout extends ViewGroup {
         mCountX = a.getInteger(R.styleable.CellLayout_cellCountX, 4);
         mCountY = a.getInteger(R.styleable.CellLayout_cellCountY, 4);
         mOccupied = new boolean[mCountX][mCountY];
+        mOccupiedGrid = new OccupancyGrid(mCountX, mCountY);
         mTmpOccupied = new boolean[mCountX][mCountY];
         mPreviousReorderDirection[0] = INVALID_DIRECTION;
         mPreviousReorderDirection[1] = INVALID_DIRECTION;
@@ -3093,32 +3096,15 @@ public class CellLayout extends ViewGroup {
      * @return True if a vacant cell was found
      */
     public boolean getVacantCell(int[] vacant, int spanX, int spanY) {
-
-        return findVacantCell(vacant, spanX, spanY, mCountX, mCountY, mOccupied);
+        return mOccupiedGrid.findVacant(vacant, spanX, spanY);
     }
 
-    static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        for (int y = 0; y < yCount; y++) {
-            for (int x = 0; x < xCount; x++) {
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
-                    for (int j = y; j < y + spanY - 1 && y < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }
-
-        return false;
+    /**
+     * Returns whether the given span lies within this layout and none of its cells is
+     * occupied.
+     */
+    public boolean isRegionVacant(int cellX, int cellY, int spanX, int spanY) {
+        return mOccupiedGrid.isVacant(cellX, cellY, spanX, spanY);
     }
 
     private void clearOccupiedCells() {
@@ -3127,6 +3113,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
                 mOccupied[x][y] = false;
             }
         }
+        mOccupiedGrid.clear();
     }
 
     public void onMove(View view, int newCellX, int newCellY, int newSpanX, int newSpanY) {
@@ -3160,6 +3147,9 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
                 occupied[x][y] = value;
             }
         }
+        if (occupied == mOccupied) {
+            mOccupiedGrid.set(cellX, cellY, spanX, spanY, value);
+        }
     }
 
     public int getDesiredWidth() {
@@ -3174,7 +3164,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupiedGrid.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
@@ -0,0 +1,72 @@
+package com.cncoderx.launcher;
+
+/**
+ * Decides how many workspace items to bind at a time so that binding fits in the time left
+ * until the next frame. What an item costs, creating its view and adding it to the workspace,
+ * is measured as items are bound, so a slow device binds a few items between two frames and
+ * a fast one a whole page.
+ *
+ * Times are {@link System#nanoTime} nanoseconds, like Choreographer frame times. Only used on
+ * the main thread.
+ */
+final class FrameBudget {
+    // The part of a frame left for the input and animations of the next one, 1/8
+    private static final int RESERVE_SHIFT = 3;
+
+    private final long mFrameIntervalNanos;
+    private final int mInitialItems;
+    // The start of the last frame seen, -1 before the first
+    private long mLastFrameNanos = -1;
+    // Average cost of binding an item, 0 until one was bound
+    private long mNanosPerItem;
+
+    /**
+     * @param initialItems how many items to bind at a time until their cost is known
+     */
+    FrameBudget(long frameIntervalNanos, int initialItems) {
+        mFrameIntervalNanos = frameIntervalNanos;
+        mInitialItems = initialItems;
+    }
+
+    /** Records that a frame started, from a Choreographer frame callback. */
+    void onFrame(long frameTimeNanos) {
+        mLastFrameNanos = frameTimeNanos;
+    }
+
+    /**
+     * Returns the time that can be spent at "now" before the next frame, which may be
+     * negative when it is nearly there.
+     */
+    long remainingNanos(long now) {
+        final long budget = mFrameIntervalNanos - (mFrameIntervalNanos >> RESERVE_SHIFT);
+        if (mLastFrameNanos < 0 || now < mLastFrameNanos) {
+            return budget;
+        }
+        // Frames that went by unseen started a whole number of intervals after the last one
+        return budget - (now - mLastFrameNanos) % mFrameIntervalNanos;
+    }
+
+    /**
+     * Returns how many of the "remaining" items to bind at "now". At least one, so that
+     * binding goes on even when an item takes longer than a frame.
+     */
+    int itemsToBind(long now, int remaining) {
+        if (remaining <= 0) {
+            return 0;
+        }
+        final long items = mNanosPerItem == 0
+                ? mInitialItems : remainingNanos(now) / mNanosPerItem;
+        return (int) Math.max(1, Math.min(items, remaining));
+    }
+
+    /** Records that binding "items" items took "durationNanos". */
+    void onBound(int items, long durationNanos) {
+        if (items <= 0) {
+            return;
+        }
+        final long perItem = Math.max(1, durationNanos / items);
+        // Moving average, one slow item shouldn't shrink the next chunks to nothing
+        mNanosPerItem = mNanosPerItem == 0
+                ? perItem : mNanosPerItem + (perItem - mNanosPerItem) / 4;
+    }
+}
@@ -22,30 +22,134 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.LauncherActivityInfo;
+import android.content.ContentValues;
 import android.content.pm.LauncherApps;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.LruCache;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
 
 /**
- * Cache of application icons.  Icons can be made from any thread.
+ * Cache of application icons.  Icons can be made from any thread, and are rendered on the
+ * calling thread without holding the cache lock.
  */
 public class IconCache {
     @SuppressWarnings("unused")
     private static final String TAG = "Launcher.IconCache";
 
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // Fraction of the per-app memory class used for icons when no explicit budget is configured
+    private static final int DEFAULT_ICON_CACHE_MEMORY_FRACTION = 16;
+
+    // Low res icons are persisted at 1/LOW_RES_SCALE of the full size in each dimension
+    private static final int LOW_RES_SCALE = 4;
+
+    /**
+     * Receives the result of {@link #getIconAsync}, on the main thread.
+     */
+    public interface IconCallback {
+        void onIconLoaded(Bitmap icon);
+    }
+
+    /**
+     * A pending {@link #getIconAsync} call. Cancel it once the result isn't wanted anymore, for
+     * example when the view it was for gets recycled; a cancelled request is skipped if it
+     * hasn't run yet, and its callback is never called.
+     */
+    public static class IconLoadRequest {
+        private volatile boolean mCancelled;
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
 
     private static class CacheEntry {
         public Bitmap icon;
         public String title;
+        // The locale of title; the title of an entry from another locale is reloaded
+        public Locale locale;
         public CharSequence contentDescription;
+        public boolean isLowResIcon;
+        public byte[] sortKey;
+    }
+
+    /**
+     * LRU of rendered icons bounded by their allocation size. Entries that are pinned (because
+     * they back an icon bound on the workspace) are moved out of the LRU when evicted, and come
+     * back into it once they are unpinned.
+     */
+    private class IconLruCache extends LruCache<CacheKey, CacheEntry> {
+        IconLruCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(CacheKey key, CacheEntry value) {
+            // Interned icons are counted once per entry that uses them, which errs on the
+            // side of a smaller cache
+            return value.icon != null ? value.icon.getAllocationByteCount() : 0;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, CacheKey key, CacheEntry oldValue,
+                CacheEntry newValue) {
+            if (evicted) {
+                if (mPinCounts.containsKey(key)) {
+                    mPinnedEntries.put(key, oldValue);
+                } else {
+                    removeFromPackageIndexLocked(key);
+                }
+            }
+        }
+    }
+
+    private static class PackageKey {
+        public String packageName;
+        public UserHandle user;
+
+        PackageKey(String packageName, UserHandle user) {
+            this.packageName = packageName;
+            this.user = user;
+        }
+
+        @Override
+        public int hashCode() {
+            return packageName.hashCode() + user.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            PackageKey other = (PackageKey) o;
+            return other.packageName.equals(packageName) && other.user.equals(user);
+        }
     }
 
     private static class CacheKey {
@@ -69,22 +173,123 @@ public class IconCache {
         }
     }
 
+    /**
+     * Persistent store of rendered icons and labels, so that a cold start does not have to
+     * go through the PackageManager for every activity. Rows are keyed by component and user
+     * serial, and are only valid for the package update time and system state they were
+     * written with. Labels are also only valid for the locale they were written in; the icon
+     * of a row stays valid when the locale changes.
+     */
+    static class IconDb extends SQLiteOpenHelper {
+        final static int DB_VERSION = 4;
+        final static String DB_NAME = "app_icons.db";
+        final static String TABLE_NAME = "icons";
+        final static String COLUMN_COMPONENT = "componentName";
+        final static String COLUMN_USER = "profileId";
+        final static String COLUMN_LAST_UPDATED = "lastUpdated";
+        final static String COLUMN_SYSTEM_STATE = "systemState";
+        final static String COLUMN_ICON = "icon";
+        final static String COLUMN_ICON_LOW_RES = "icon_low_res";
+        final static String COLUMN_LABEL = "label";
+        final static String COLUMN_SORT_KEY = "sortKey";
+        final static String COLUMN_LOCALE = "locale";
+
+        public IconDb(Context context) {
+            super(context, new File(context.getCacheDir(), DB_NAME).getPath(), null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_SYSTEM_STATE + " TEXT, " +
+                    COLUMN_ICON + " BLOB, " +
+                    COLUMN_ICON_LOW_RES + " BLOB, " +
+                    COLUMN_LABEL + " TEXT, " +
+                    COLUMN_SORT_KEY + " BLOB, " +
+                    COLUMN_LOCALE + " TEXT, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
+                    ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                // Drop everything, including the schema; it'll be repopulated as this is a cache
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                onCreate(db);
+            }
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            onUpgrade(db, oldVersion, newVersion);
+        }
+    }
+
     private final Bitmap mDefaultIcon;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private final LauncherApplication mContext;
     private final PackageManager mPackageManager;
-    private final HashMap<CacheKey, CacheEntry> mCache =
-            new HashMap<CacheKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final UserManager mUserManager;
+    private final LauncherApps mLauncherApps;
+    private final IconLruCache mCache;
+    // Pinned keys and their pin counts, and the pinned entries that have left the LRU
+    private final HashMap<CacheKey, Integer> mPinCounts = new HashMap<CacheKey, Integer>();
+    private final HashMap<CacheKey, CacheEntry> mPinnedEntries =
+            new HashMap<CacheKey, CacheEntry>();
     private int mIconDpi;
 
+    private final IconDb mIconDb;
+    // Locale of the labels and sort keys handed out, see updateLocale()
+    private volatile Locale mLocale;
+    private final String mSystemState;
+    // (package, user) -> update time, see getPackageUpdateTime(). Filled from the listings of
+    // getActivityList(), which the loader does anyway. Only looked up and published under
+    // the lock, the times are computed outside of it.
+    private final Object mPackageUpdateTimesLock = new Object();
+    private final HashMap<PackageKey, Long> mPackageUpdateTimes = new HashMap<PackageKey, Long>();
+    private final HashSet<UserHandle> mUpdateTimeProfiles = new HashSet<UserHandle>();
+    // Bumped whenever update times are dropped, so that older listings are not published
+    private int mUpdateTimesGeneration;
+
+    // Loads that are currently running, so that concurrent requests for one key share a load
+    private final InFlightRequests<CacheKey, CacheEntry> mInFlight =
+            new InFlightRequests<CacheKey, CacheEntry>();
+    // Bumped on every removal, so that loads which started before it are not inserted
+    private int mGeneration;
+    // Keys of everything in mCache and mPinnedEntries, by package and user
+    private final HashMap<PackageKey, HashSet<CacheKey>> mPackageIndex =
+            new HashMap<PackageKey, HashSet<CacheKey>>();
+    // Sort keys of labels, kept apart from mCache since they outlive evicted icons
+    private final HashMap<CacheKey, byte[]> mSortKeys = new HashMap<CacheKey, byte[]>();
+
     public IconCache(LauncherApplication context) {
         ActivityManager activityManager =
                 (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
 
         mContext = context;
         mPackageManager = context.getPackageManager();
+        mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mLauncherApps = (LauncherApps) context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
         mIconDpi = activityManager.getLauncherLargeIconDensity();
         // need to set mIconDpi before getting default icon
-        mDefaultIcon = makeDefaultIcon();
+        mDefaultIcon = Utilities.internIcon(makeDefaultIcon());
+
+        int maxBytes = context.getResources().getInteger(R.integer.config_iconCacheSizeKb) * 1024;
+        if (maxBytes <= 0) {
+            maxBytes = activityManager.getMemoryClass() * 1024 * 1024
+                    / DEFAULT_ICON_CACHE_MEMORY_FRACTION;
+        }
+        mCache = new IconLruCache(maxBytes);
+
+        mIconDb = new IconDb(context);
+        // Icons depend on the density and system build, so a change in any of these invalidates
+        // everything that was persisted before. Labels depend on the locale as well.
+        mLocale = Locale.getDefault();
+        mSystemState = mIconDpi + "," + Build.VERSION.INCREMENTAL;
     }
 
     public Drawable getFullResDefaultActivityIcon() {
@@ -158,11 +363,82 @@ public class IconCache {
     }
 
     /**
-     * Remove any records for the supplied ComponentName.
+     * Remove any records for the supplied component of a user profile.
      */
-    public void remove(ComponentName componentName) {
+    public void removeComponent(ComponentName componentName, UserHandle user) {
         synchronized (mCache) {
-            mCache.remove(componentName);
+            CacheKey key = new CacheKey(componentName, user);
+            removeLocked(key);
+            mSortKeys.remove(key);
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Remove any records for the components of the supplied package in a user profile. This
+     * also forgets the package update time, so that updated packages are reloaded rather than
+     * served from the persistent store.
+     */
+    public void removePackage(final String packageName, UserHandle user) {
+        synchronized (mCache) {
+            HashSet<CacheKey> keys = mPackageIndex.get(new PackageKey(packageName, user));
+            if (keys != null) {
+                for (CacheKey key : new ArrayList<CacheKey>(keys)) {
+                    removeLocked(key);
+                }
+            }
+            Iterator<CacheKey> it = mSortKeys.keySet().iterator();
+            while (it.hasNext()) {
+                CacheKey key = it.next();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    it.remove();
+                }
+            }
+            mGeneration++;
+        }
+        synchronized (mPackageUpdateTimesLock) {
+            mPackageUpdateTimes.remove(new PackageKey(packageName, user));
+            mUpdateTimesGeneration++;
+        }
+
+        // The rows would be ignored once the package changes, but don't keep rows around for
+        // packages that are gone
+        final long serialNumber = mUserManager.getSerialNumberForUser(user);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    mIconDb.getWritableDatabase().delete(IconDb.TABLE_NAME,
+                            IconDb.COLUMN_COMPONENT + " LIKE ? AND " + IconDb.COLUMN_USER + " = ?",
+                            new String[] { packageName + "/%", Long.toString(serialNumber) });
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Unable to remove icons for " + packageName, e);
+                }
+            }
+        });
+    }
+
+    private void removeLocked(CacheKey key) {
+        mCache.remove(key);
+        mPinnedEntries.remove(key);
+        removeFromPackageIndexLocked(key);
+    }
+
+    private void addToPackageIndexLocked(CacheKey key) {
+        PackageKey packageKey = new PackageKey(key.componentName.getPackageName(), key.user);
+        HashSet<CacheKey> keys = mPackageIndex.get(packageKey);
+        if (keys == null) {
+            keys = new HashSet<CacheKey>();
+            mPackageIndex.put(packageKey, keys);
+        }
+        keys.add(key);
+    }
+
+    private void removeFromPackageIndexLocked(CacheKey key) {
+        PackageKey packageKey = new PackageKey(key.componentName.getPackageName(), key.user);
+        HashSet<CacheKey> keys = mPackageIndex.get(packageKey);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            mPackageIndex.remove(packageKey);
         }
     }
 
@@ -171,82 +447,688 @@ public class IconCache {
      */
     public void flush() {
         synchronized (mCache) {
-            mCache.clear();
+            mCache.evictAll();
+            mPinnedEntries.clear();
+            mPackageIndex.clear();
+            mSortKeys.clear();
+            mGeneration++;
+        }
+        synchronized (mPackageUpdateTimesLock) {
+            mPackageUpdateTimes.clear();
+            mUpdateTimeProfiles.clear();
+            mUpdateTimesGeneration++;
         }
     }
 
     /**
-     * Fill in "application" with the icon and label for "info."
+     * Switches labels and sort keys over to the current default locale. Icons, in memory and
+     * persisted, are kept; the labels of entries already in memory are refreshed by
+     * {@link #relabel}, or else the next time they are asked for.
      */
-    public void getTitleAndIcon(ApplicationInfo application, LauncherActivityInfo info,
-                                HashMap<Object, CharSequence> labelCache) {
+    public void updateLocale() {
+        Locale locale = Locale.getDefault();
+        synchronized (mCache) {
+            if (locale.equals(mLocale)) {
+                return;
+            }
+            mLocale = locale;
+            mSortKeys.clear();
+        }
+    }
+
+    /**
+     * Reloads the label of "info" in the current locale and fills it in "item", keeping the
+     * icon. Returns the sort key of the new label.
+     */
+    public byte[] relabel(ItemInfo item, LauncherActivityInfo info) {
+        final ComponentName componentName = info.getComponentName();
+        final UserHandle user = info.getUser();
+        final Locale locale = mLocale;
+        final String title = getLabel(info, null);
+        final byte[] sortKey = SortKeys.forLabel(title, locale);
+        final CharSequence contentDescription =
+                mPackageManager.getUserBadgedLabel(title, user);
+
+        final CacheKey cacheKey = new CacheKey(componentName, user);
         synchronized (mCache) {
-            CacheEntry entry = cacheLocked(application.componentName, info, labelCache,
-                    info.getUser());
+            mSortKeys.put(cacheKey, sortKey);
+            CacheEntry entry = getLocked(cacheKey);
+            if (entry != null) {
+                replaceTitleLocked(cacheKey, entry, title, contentDescription, locale);
+            }
+        }
+        updateLabelInDb(componentName, mUserManager.getSerialNumberForUser(user), title,
+                locale);
+
+        item.title = title;
+        item.contentDescription = contentDescription;
+        return sortKey;
+    }
 
-            application.title = entry.title;
-            application.iconBitmap = entry.icon;
-            application.contentDescription = entry.contentDescription;
+    /**
+     * Puts a copy of "entry" with the given title in its place, if it is still cached.
+     * Entries are read without holding mCache, so they are replaced rather than modified.
+     */
+    private CacheEntry replaceTitleLocked(CacheKey cacheKey, CacheEntry entry, String title,
+            CharSequence contentDescription, Locale locale) {
+        CacheEntry relabeled = new CacheEntry();
+        relabeled.icon = entry.icon;
+        relabeled.isLowResIcon = entry.isLowResIcon;
+        relabeled.title = title;
+        relabeled.contentDescription = contentDescription;
+        relabeled.locale = locale;
+        if (mPinnedEntries.get(cacheKey) == entry) {
+            mPinnedEntries.put(cacheKey, relabeled);
+        } else if (mCache.get(cacheKey) == entry) {
+            mCache.put(cacheKey, relabeled);
         }
+        return relabeled;
     }
 
-    public Bitmap getIcon(Intent intent, UserHandle user) {
+    /**
+     * Keeps the icon of the component resident regardless of the memory budget, until a
+     * matching call to {@link #unpin}. Used for icons bound to workspace shortcuts.
+     */
+    public void pin(ComponentName componentName, UserHandle user) {
+        if (componentName == null || user == null) {
+            return;
+        }
         synchronized (mCache) {
-            LauncherApps launcherApps = (LauncherApps)
-                    mContext.getSystemService(Context.LAUNCHER_APPS_SERVICE);
-            final LauncherActivityInfo launcherActInfo =
-                    launcherApps.resolveActivity(intent, user);
-            ComponentName component = intent.getComponent();
+            CacheKey key = new CacheKey(componentName, user);
+            Integer count = mPinCounts.get(key);
+            mPinCounts.put(key, count == null ? 1 : count + 1);
+        }
+    }
 
-            if (launcherActInfo == null || component == null) {
-                return mDefaultIcon;
+    public void unpin(ComponentName componentName, UserHandle user) {
+        if (componentName == null || user == null) {
+            return;
+        }
+        synchronized (mCache) {
+            CacheKey key = new CacheKey(componentName, user);
+            Integer count = mPinCounts.get(key);
+            if (count == null) {
+                return;
             }
+            if (count > 1) {
+                mPinCounts.put(key, count - 1);
+            } else {
+                mPinCounts.remove(key);
+                CacheEntry entry = mPinnedEntries.remove(key);
+                if (entry != null) {
+                    // Give it back to the LRU, which may evict it right away
+                    mCache.put(key, entry);
+                }
+            }
+        }
+    }
 
-            CacheEntry entry = cacheLocked(component, launcherActInfo, null, user);
-            return entry.icon;
+    public void unpinAll() {
+        synchronized (mCache) {
+            mPinCounts.clear();
+            for (CacheKey key : mPinnedEntries.keySet()) {
+                removeFromPackageIndexLocked(key);
+            }
+            mPinnedEntries.clear();
         }
     }
 
-    public Bitmap getIcon(ComponentName component, LauncherActivityInfo info,
-            HashMap<Object, CharSequence> labelCache) {
+    /**
+     * Changes the memory budget of the cache, in bytes. Pinned icons are not counted.
+     */
+    public void setMaxSize(int maxBytes) {
+        synchronized (mCache) {
+            mCache.resize(maxBytes);
+        }
+    }
+
+    /**
+     * Returns how many icons have been evicted because of the memory budget.
+     */
+    public int getEvictionCount() {
+        synchronized (mCache) {
+            return mCache.evictionCount();
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mCache) {
+            Log.d(TAG, "IconCache size=" + mCache.size() + "/" + mCache.maxSize()
+                    + " bytes entries=" + mCache.snapshot().size()
+                    + " pinned=" + mPinCounts.size()
+                    + " pinnedOutOfBudget=" + mPinnedEntries.size()
+                    + " hits=" + mCache.hitCount() + " misses=" + mCache.missCount()
+                    + " evictions=" + mCache.evictionCount());
+        }
+        BitmapInterner interner = Utilities.getIconInterner();
+        Log.d(TAG, "Interned icons=" + interner.size() + " shared=" + interner.getHitCount()
+                + " bytesSaved=" + interner.getBytesSaved());
+    }
+
+    /**
+     * Fill in "application" with the icon and label for "info."
+     */
+    public void getTitleAndIcon(ApplicationInfo application, LauncherActivityInfo info,
+                                HashMap<Object, CharSequence> labelCache) {
+        getTitleAndIcon(application, info, labelCache, false);
+    }
+
+    /**
+     * Fill in "application" with the icon and label for "info." If useLowResIcon is set, a
+     * persisted low res icon may be used instead of the full one, in which case
+     * {@link ItemInfo#usingLowResIcon} is set and the caller is expected to ask again for the
+     * full icon later.
+     */
+    public void getTitleAndIcon(ApplicationInfo application, LauncherActivityInfo info,
+            HashMap<Object, CharSequence> labelCache, boolean useLowResIcon) {
+        CacheEntry entry = getEntry(application.componentName, info, labelCache,
+                info.getUser(), useLowResIcon);
+
+        application.title = entry.title;
+        application.iconBitmap = entry.icon;
+        application.contentDescription = entry.contentDescription;
+        application.usingLowResIcon = entry.isLowResIcon;
+    }
+
+    /**
+     * Fill in "shortcut" with the icon and label of the application it launches. See
+     * {@link #getTitleAndIcon(ApplicationInfo, LauncherActivityInfo, HashMap, boolean)}.
+     */
+    public void getTitleAndIcon(ShortcutInfo shortcut, ComponentName component,
+            LauncherActivityInfo info, HashMap<Object, CharSequence> labelCache,
+            boolean useLowResIcon) {
+        CacheEntry entry = getEntry(component, info, labelCache, info.getUser(),
+                useLowResIcon);
+
+        shortcut.title = entry.title;
+        shortcut.setIcon(entry.icon);
+        shortcut.contentDescription = entry.contentDescription;
+        shortcut.usingLowResIcon = entry.isLowResIcon;
+    }
+
+    /**
+     * Returns the icon of the activity "intent" launches if it is in memory, including a low
+     * res one, or null. Never loads anything.
+     */
+    public Bitmap getCachedIcon(Intent intent, UserHandle user) {
+        ComponentName component = intent.getComponent();
+        if (component == null) {
+            return null;
+        }
         synchronized (mCache) {
-            if (info == null || component == null) {
-                return null;
+            CacheEntry entry = getLocked(new CacheKey(component, user));
+            return entry != null ? entry.icon : null;
+        }
+    }
+
+    /**
+     * Loads the icon of {@link #getIcon(Intent, UserHandle)} on a background thread and hands
+     * it to "callback" on the main thread, so that callers on the main thread never resolve
+     * activities or render icons themselves.
+     */
+    public IconLoadRequest getIconAsync(final Intent intent, final UserHandle user,
+            final IconCallback callback) {
+        final IconLoadRequest request = new IconLoadRequest();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                final Bitmap icon = getIcon(intent, user);
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (!request.isCancelled()) {
+                            callback.onIconLoaded(icon);
+                        }
+                    }
+                });
             }
+        });
+        return request;
+    }
+
+    public Bitmap getDefaultIcon() {
+        return mDefaultIcon;
+    }
+
+    public Bitmap getIcon(Intent intent, UserHandle user) {
+        LauncherApps launcherApps = (LauncherApps)
+                mContext.getSystemService(Context.LAUNCHER_APPS_SERVICE);
+        final LauncherActivityInfo launcherActInfo =
+                launcherApps.resolveActivity(intent, user);
+        ComponentName component = intent.getComponent();
+
+        if (launcherActInfo == null || component == null) {
+            return mDefaultIcon;
+        }
+
+        CacheEntry entry = getEntry(component, launcherActInfo, null, user, false);
+        return entry.icon;
+    }
 
-            CacheEntry entry = cacheLocked(component, info, labelCache, info.getUser());
-            return entry.icon;
+    public Bitmap getIcon(ComponentName component, LauncherActivityInfo info,
+            HashMap<Object, CharSequence> labelCache) {
+        if (info == null || component == null) {
+            return null;
         }
+
+        CacheEntry entry = getEntry(component, info, labelCache, info.getUser(), false);
+        return entry.icon;
     }
 
     public boolean isDefaultIcon(Bitmap icon) {
         return mDefaultIcon == icon;
     }
 
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfo info,
-            HashMap<Object, CharSequence> labelCache, UserHandle user) {
-        CacheKey cacheKey = new CacheKey(componentName, user);
+    /**
+     * Returns the cached entry for the component, loading it if needed. Only the lookup and
+     * the insert hold mCache; loading runs on the calling thread, so different components
+     * load in parallel, and callers asking for a component that is already loading wait for
+     * that load instead of repeating it.
+     *
+     * With useLowResIcon, a low res entry from the persistent store is good enough. These
+     * loads only read the store, so they are not coalesced.
+     */
+    private CacheEntry getEntry(final ComponentName componentName,
+            final LauncherActivityInfo info, final HashMap<Object, CharSequence> labelCache,
+            final UserHandle user, boolean useLowResIcon) {
+        final CacheKey cacheKey = new CacheKey(componentName, user);
+        CacheEntry entry;
+        final int generation;
+        synchronized (mCache) {
+            entry = getLocked(cacheKey);
+            generation = mGeneration;
+        }
+        if (entry != null && entry.isLowResIcon && !useLowResIcon) {
+            entry = null;
+        }
+        if (entry != null && !mLocale.equals(entry.locale)) {
+            // Cached before the locale changed and not relabeled since, the icon is still good
+            final Locale locale = mLocale;
+            final String title = getLabel(info, null);
+            final CharSequence contentDescription =
+                    mPackageManager.getUserBadgedLabel(title, user);
+            synchronized (mCache) {
+                entry = replaceTitleLocked(cacheKey, entry, title, contentDescription, locale);
+            }
+            updateLabelInDb(componentName, mUserManager.getSerialNumberForUser(user), title,
+                    locale);
+        }
+        if (entry == null && useLowResIcon) {
+            entry = loadLowResEntry(componentName, user);
+            if (entry != null) {
+                synchronized (mCache) {
+                    if (generation == mGeneration && getLocked(cacheKey) == null) {
+                        putLocked(cacheKey, entry);
+                    }
+                }
+            }
+        }
+        if (entry == null) {
+            entry = mInFlight.get(cacheKey, new Callable<CacheEntry>() {
+                public CacheEntry call() {
+                    synchronized (mCache) {
+                        // It may have been inserted since our lookup above
+                        CacheEntry cached = getLocked(cacheKey);
+                        if (cached != null && !cached.isLowResIcon) {
+                            return cached;
+                        }
+                    }
+                    CacheEntry loaded = loadEntry(componentName, info, labelCache, user);
+                    synchronized (mCache) {
+                        // Don't insert anything that was loaded before a flush or a remove
+                        if (generation == mGeneration) {
+                            putLocked(cacheKey, loaded);
+                        }
+                    }
+                    return loaded;
+                }
+            });
+        }
+        if (labelCache != null) {
+            ComponentName key = info.getComponentName();
+            if (!labelCache.containsKey(key)) {
+                labelCache.put(key, entry.title);
+            }
+        }
+        return entry;
+    }
+
+    private void putLocked(CacheKey cacheKey, CacheEntry entry) {
+        // A pinned low res entry is replaced along with the one in the LRU
+        mPinnedEntries.remove(cacheKey);
+        // Only insert once the icon is set, the LRU sizes entries on insertion
+        mCache.put(cacheKey, entry);
+        addToPackageIndexLocked(cacheKey);
+    }
+
+    private CacheEntry getLocked(CacheKey cacheKey) {
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null) {
-            entry = new CacheEntry();
+            entry = mPinnedEntries.get(cacheKey);
+        }
+        return entry;
+    }
 
-            mCache.put(cacheKey, entry);
+    /**
+     * Loads the icon and label from the persistent store, or renders them if the store has
+     * nothing valid. Must not be called with mCache held.
+     */
+    private CacheEntry loadEntry(ComponentName componentName, LauncherActivityInfo info,
+            HashMap<Object, CharSequence> labelCache, UserHandle user) {
+        CacheEntry entry = new CacheEntry();
+        entry.locale = mLocale;
 
-            ComponentName key = info.getComponentName();
-            if (labelCache != null && labelCache.containsKey(key)) {
-                entry.title = labelCache.get(key).toString();
-            } else {
-                entry.title = info.getLabel().toString();
-                if (labelCache != null) {
-                    labelCache.put(key, entry.title);
-                }
+        ComponentName key = info.getComponentName();
+        final long serialNumber = mUserManager.getSerialNumberForUser(user);
+        final long lastUpdateTime = getPackageUpdateTime(key.getPackageName(), user);
+        if (!getEntryFromDb(componentName, serialNumber, lastUpdateTime, entry, false)) {
+            entry.title = getLabel(info, labelCache);
+            entry.icon = Utilities.internIcon(
+                    Utilities.createIconBitmap(info.getBadgedIcon(mIconDpi), mContext));
+            addEntryToDb(componentName, serialNumber, lastUpdateTime, entry);
+        } else if (entry.title == null) {
+            // The icon is still good, only the label was written in another locale
+            entry.title = getLabel(info, labelCache);
+            updateLabelInDb(componentName, serialNumber, entry.title, mLocale);
+        }
+        entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
+        return entry;
+    }
+
+    private static String getLabel(LauncherActivityInfo info,
+            HashMap<Object, CharSequence> labelCache) {
+        ComponentName key = info.getComponentName();
+        CharSequence label = null;
+        if (labelCache != null) {
+            label = labelCache.get(key);
+        }
+        if (label == null) {
+            label = info.getLabel();
+        }
+        return label != null ? label.toString() : key.getShortClassName();
+    }
+
+    /**
+     * Returns the sort key of the label of "info", see {@link SortKeys}. Labels and their keys
+     * are persisted along with the icons, so once they are known sorting doesn't need to
+     * resolve any label.
+     */
+    public byte[] getSortKey(LauncherActivityInfo info,
+            HashMap<Object, CharSequence> labelCache) {
+        final ComponentName componentName = info.getComponentName();
+        final UserHandle user = info.getUser();
+        final CacheKey cacheKey = new CacheKey(componentName, user);
+        final int generation;
+        synchronized (mCache) {
+            byte[] sortKey = mSortKeys.get(cacheKey);
+            if (sortKey != null) {
+                return sortKey;
             }
-            if (entry.title == null) {
-                entry.title = info.getComponentName().getShortClassName();
+            generation = mGeneration;
+        }
+
+        final long serialNumber = mUserManager.getSerialNumberForUser(user);
+        final long lastUpdateTime = getPackageUpdateTime(componentName.getPackageName(), user);
+        CacheEntry entry = new CacheEntry();
+        if (!getLabelFromDb(componentName, serialNumber, lastUpdateTime, entry)) {
+            entry.title = getLabel(info, labelCache);
+            entry.sortKey = SortKeys.forLabel(entry.title, mLocale);
+        }
+        if (labelCache != null && !labelCache.containsKey(componentName)) {
+            labelCache.put(componentName, entry.title);
+        }
+        synchronized (mCache) {
+            if (generation == mGeneration) {
+                mSortKeys.put(cacheKey, entry.sortKey);
             }
-            entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
-            entry.icon = Utilities.createIconBitmap(info.getBadgedIcon(mIconDpi), mContext);
         }
+        return entry.sortKey;
+    }
+
+    /**
+     * Loads the low res icon and the label from the persistent store, without rendering
+     * anything. Returns null if the store has nothing valid for the component.
+     */
+    private CacheEntry loadLowResEntry(ComponentName componentName, UserHandle user) {
+        final long serialNumber = mUserManager.getSerialNumberForUser(user);
+        final long lastUpdateTime = getPackageUpdateTime(componentName.getPackageName(), user);
+        CacheEntry entry = new CacheEntry();
+        entry.locale = mLocale;
+        if (!getEntryFromDb(componentName, serialNumber, lastUpdateTime, entry, true)) {
+            return null;
+        }
+        entry.isLowResIcon = true;
+        entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
         return entry;
     }
+
+    /**
+     * Lists the launchable activities of "user", like {@link LauncherApps#getActivityList}, and
+     * records the update times of their packages, so that validating their icons doesn't need
+     * a listing of its own. The loader lists every profile through here.
+     */
+    List<LauncherActivityInfo> getActivityList(UserHandle user) {
+        final int generation;
+        synchronized (mPackageUpdateTimesLock) {
+            generation = mUpdateTimesGeneration;
+        }
+        final List<LauncherActivityInfo> activities = mLauncherApps.getActivityList(null, user);
+        final HashMap<PackageKey, Long> times = new HashMap<PackageKey, Long>();
+        for (LauncherActivityInfo info : activities) {
+            final PackageKey key = new PackageKey(info.getComponentName().getPackageName(), user);
+            if (!times.containsKey(key)) {
+                times.put(key, getUpdateTime(info));
+            }
+        }
+        synchronized (mPackageUpdateTimesLock) {
+            // A package changed while it was listed, the listing may be stale
+            if (generation == mUpdateTimesGeneration) {
+                mPackageUpdateTimes.putAll(times);
+                mUpdateTimeProfiles.add(user);
+            }
+        }
+        return activities;
+    }
+
+    /**
+     * Returns when the package was last updated in the profile of "user", or 0 if it is not
+     * known there. The times normally come from the loader's listing of the profile, see
+     * {@link #getActivityList}; without one the profile is listed here, once. Nothing slow
+     * runs under the lock, so the loader threads don't wait for each other.
+     */
+    private long getPackageUpdateTime(String packageName, UserHandle user) {
+        final PackageKey key = new PackageKey(packageName, user);
+        final boolean listed;
+        synchronized (mPackageUpdateTimesLock) {
+            Long lastUpdateTime = mPackageUpdateTimes.get(key);
+            if (lastUpdateTime != null) {
+                return lastUpdateTime;
+            }
+            listed = mUpdateTimeProfiles.contains(user);
+        }
+        if (!listed) {
+            try {
+                getActivityList(user);
+            } catch (RuntimeException e) {
+                // The list can be too large for a single binder transaction on some devices;
+                // fall back to a per package query below.
+                Log.w(TAG, "Unable to query the activities of " + user, e);
+            }
+            synchronized (mPackageUpdateTimesLock) {
+                Long lastUpdateTime = mPackageUpdateTimes.get(key);
+                if (lastUpdateTime != null) {
+                    return lastUpdateTime;
+                }
+            }
+        }
+
+        final int generation;
+        synchronized (mPackageUpdateTimesLock) {
+            generation = mUpdateTimesGeneration;
+        }
+        final List<LauncherActivityInfo> activities =
+                mLauncherApps.getActivityList(packageName, user);
+        final long lastUpdateTime = activities.isEmpty() ? 0L : getUpdateTime(activities.get(0));
+        synchronized (mPackageUpdateTimesLock) {
+            if (generation == mUpdateTimesGeneration) {
+                mPackageUpdateTimes.put(key, lastUpdateTime);
+            }
+        }
+        return lastUpdateTime;
+    }
+
+    /**
+     * Returns when the package of "info" was installed or updated in its profile.
+     * PackageInfo.lastUpdateTime is only available for the calling user, so the time comes
+     * from the APK, which an update replaces.
+     */
+    private static long getUpdateTime(LauncherActivityInfo info) {
+        return Math.max(info.getFirstInstallTime(),
+                new File(info.getApplicationInfo().sourceDir).lastModified());
+    }
+
+    /**
+     * Fills in "entry" from the persistent store. Returns false if there is no row for the
+     * component, or if the row was written for an older version of the package. If the label
+     * was written in another locale, the title is left null, except for low res entries which
+     * are not returned at all.
+     */
+    private boolean getEntryFromDb(ComponentName componentName, long serialNumber,
+            long lastUpdateTime, CacheEntry entry, boolean lowRes) {
+        Cursor c;
+        try {
+            c = mIconDb.getReadableDatabase().query(IconDb.TABLE_NAME,
+                    new String[] { lowRes ? IconDb.COLUMN_ICON_LOW_RES : IconDb.COLUMN_ICON,
+                            IconDb.COLUMN_LABEL, IconDb.COLUMN_LOCALE },
+                    IconDb.COLUMN_COMPONENT + " = ? AND " + IconDb.COLUMN_USER + " = ? AND "
+                            + IconDb.COLUMN_LAST_UPDATED + " = ? AND "
+                            + IconDb.COLUMN_SYSTEM_STATE + " = ?",
+                    new String[] { componentName.flattenToString(),
+                            Long.toString(serialNumber), Long.toString(lastUpdateTime),
+                            mSystemState },
+                    null, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to read icon for " + componentName, e);
+            return false;
+        }
+        try {
+            if (!c.moveToNext()) {
+                return false;
+            }
+            byte[] data = c.getBlob(0);
+            String label = c.getString(1);
+            if (data == null) {
+                return false;
+            }
+            if (!mLocale.toString().equals(c.getString(2))) {
+                label = null;
+            }
+            if (label == null && lowRes) {
+                return false;
+            }
+            Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (icon == null) {
+                return false;
+            }
+            entry.icon = Utilities.internIcon(icon);
+            entry.title = label;
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Fills in the title and sort key of "entry" from the persistent store, without reading
+     * any icon. Returns false if there is no valid row for the component.
+     */
+    private boolean getLabelFromDb(ComponentName componentName, long serialNumber,
+            long lastUpdateTime, CacheEntry entry) {
+        Cursor c;
+        try {
+            c = mIconDb.getReadableDatabase().query(IconDb.TABLE_NAME,
+                    new String[] { IconDb.COLUMN_LABEL, IconDb.COLUMN_SORT_KEY },
+                    IconDb.COLUMN_COMPONENT + " = ? AND " + IconDb.COLUMN_USER + " = ? AND "
+                            + IconDb.COLUMN_LAST_UPDATED + " = ? AND "
+                            + IconDb.COLUMN_SYSTEM_STATE + " = ? AND "
+                            + IconDb.COLUMN_LOCALE + " = ?",
+                    new String[] { componentName.flattenToString(),
+                            Long.toString(serialNumber), Long.toString(lastUpdateTime),
+                            mSystemState, mLocale.toString() },
+                    null, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to read label for " + componentName, e);
+            return false;
+        }
+        try {
+            if (!c.moveToNext()) {
+                return false;
+            }
+            String label = c.getString(0);
+            byte[] sortKey = c.getBlob(1);
+            if (label == null || sortKey == null) {
+                return false;
+            }
+            entry.title = label;
+            entry.sortKey = sortKey;
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void addEntryToDb(ComponentName componentName, long serialNumber,
+            long lastUpdateTime, CacheEntry entry) {
+        final ContentValues values = new ContentValues();
+        values.put(IconDb.COLUMN_COMPONENT, componentName.flattenToString());
+        values.put(IconDb.COLUMN_USER, serialNumber);
+        values.put(IconDb.COLUMN_LAST_UPDATED, lastUpdateTime);
+        values.put(IconDb.COLUMN_SYSTEM_STATE, mSystemState);
+        values.put(IconDb.COLUMN_LABEL, entry.title);
+        final Locale locale = mLocale;
+        values.put(IconDb.COLUMN_LOCALE, locale.toString());
+        final String title = entry.title;
+        final Bitmap icon = entry.icon;
+
+        // Compressing and writing can be done lazily; the serial executor keeps writes for the
+        // same component in order.
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                values.put(IconDb.COLUMN_SORT_KEY, SortKeys.forLabel(title, locale));
+                values.put(IconDb.COLUMN_ICON, ItemInfo.flattenBitmap(icon));
+                Bitmap lowRes = Bitmap.createScaledBitmap(icon,
+                        Math.max(icon.getWidth() / LOW_RES_SCALE, 1),
+                        Math.max(icon.getHeight() / LOW_RES_SCALE, 1), true);
+                values.put(IconDb.COLUMN_ICON_LOW_RES, ItemInfo.flattenBitmap(lowRes));
+                try {
+                    mIconDb.getWritableDatabase().insertWithOnConflict(IconDb.TABLE_NAME, null,
+                            values, SQLiteDatabase.CONFLICT_REPLACE);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Unable to persist icon for " + values, e);
+                }
+            }
+        });
+    }
+
+    private void updateLabelInDb(ComponentName componentName, long serialNumber,
+            final String title, final Locale locale) {
+        final String[] whereArgs = new String[] { componentName.flattenToString(),
+                Long.toString(serialNumber) };
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(IconDb.COLUMN_LABEL, title);
+                values.put(IconDb.COLUMN_SORT_KEY, SortKeys.forLabel(title, locale));
+                values.put(IconDb.COLUMN_LOCALE, locale.toString());
+                try {
+                    mIconDb.getWritableDatabase().update(IconDb.TABLE_NAME, values,
+                            IconDb.COLUMN_COMPONENT + " = ? AND " + IconDb.COLUMN_USER + " = ?",
+                            whereArgs);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Unable to persist label for " + whereArgs[0], e);
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,71 @@
+package com.cncoderx.launcher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs at most one computation per key at a time. A thread asking for a key that is already
+ * being computed waits for that computation instead of starting its own, while computations
+ * for different keys run concurrently on their calling threads.
+ *
+ * Nothing is kept once a computation has finished; callers are expected to put the result in
+ * their own cache before returning from the loader.
+ */
+final class InFlightRequests<K, V> {
+    private final ConcurrentHashMap<K, FutureTask<V>> mRequests =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Returns the result of the computation in flight for "key", or runs "loader" on the
+     * calling thread if there is none.
+     */
+    V get(K key, Callable<V> loader) {
+        FutureTask<V> task = mRequests.get(key);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<V>(loader);
+            task = mRequests.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    mRequests.remove(key, newTask);
+                }
+            }
+        }
+        return await(task);
+    }
+
+    /** Returns the number of computations currently running. */
+    int size() {
+        return mRequests.size();
+    }
+
+    private static <V> V await(FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // Keep waiting, the result is needed; restore the flag afterwards
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
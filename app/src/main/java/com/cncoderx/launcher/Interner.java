@@ -0,0 +1,116 @@
+package com.cncoderx.launcher;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Hands out a single instance for values with the same content, so that identical values
+ * loaded separately occupy memory once. Values are matched by a content hash, then compared
+ * with {@link #sameContent}, so hash collisions are harmless.
+ *
+ * Interned values are only weakly referenced, the interner never keeps a value alive. Callers
+ * must treat interned values as immutable since they can be shared by any number of owners.
+ */
+abstract class Interner<T> {
+    private final HashMap<Long, ArrayList<ValueRef<T>>> mValues =
+            new HashMap<Long, ArrayList<ValueRef<T>>>();
+    private final ReferenceQueue<T> mQueue = new ReferenceQueue<T>();
+
+    private int mCount;
+    private int mHits;
+    private long mBytesSaved;
+
+    private static class ValueRef<T> extends WeakReference<T> {
+        final long hash;
+
+        ValueRef(T value, long hash, ReferenceQueue<T> queue) {
+            super(value, queue);
+            this.hash = hash;
+        }
+    }
+
+    /** Returns a hash of the content of "value". */
+    protected abstract long hash(T value);
+
+    /** Returns whether "a" and "b" have the same content. */
+    protected abstract boolean sameContent(T a, T b);
+
+    /** Returns the number of bytes "value" occupies. */
+    protected abstract int sizeOf(T value);
+
+    /**
+     * Returns the interned instance with the same content as "value", or "value" itself if it
+     * is the first of its kind, in which case it becomes the interned instance.
+     */
+    T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        // Hash outside of the lock, it's the expensive part
+        final long hash = hash(value);
+        synchronized (this) {
+            purgeLocked();
+            ArrayList<ValueRef<T>> bucket = mValues.get(hash);
+            if (bucket == null) {
+                bucket = new ArrayList<ValueRef<T>>(1);
+                mValues.put(hash, bucket);
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+                T interned = bucket.get(i).get();
+                if (interned == value) {
+                    return interned;
+                }
+                if (interned != null && sameContent(interned, value)) {
+                    mHits++;
+                    mBytesSaved += sizeOf(value);
+                    return interned;
+                }
+            }
+            bucket.add(new ValueRef<T>(value, hash, mQueue));
+            mCount++;
+            return value;
+        }
+    }
+
+    /** Returns the number of distinct values currently interned. */
+    synchronized int size() {
+        purgeLocked();
+        return mCount;
+    }
+
+    /** Returns how many values were replaced by an interned instance so far. */
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Returns the total size of the values that were replaced by an interned instance. */
+    synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    /** Forgets all interned values, and resets the statistics. */
+    synchronized void clear() {
+        mValues.clear();
+        while (mQueue.poll() != null) {
+        }
+        mCount = 0;
+        mHits = 0;
+        mBytesSaved = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void purgeLocked() {
+        ValueRef<T> ref;
+        while ((ref = (ValueRef<T>) mQueue.poll()) != null) {
+            ArrayList<ValueRef<T>> bucket = mValues.get(ref.hash);
+            if (bucket != null && bucket.remove(ref)) {
+                mCount--;
+                if (bucket.isEmpty()) {
+                    mValues.remove(ref.hash);
+                }
+            }
+        }
+    }
+}
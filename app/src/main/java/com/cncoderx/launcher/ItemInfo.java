@@ -102,6 +102,12 @@ class ItemInfo {
      */
     CharSequence contentDescription;
 
+    /**
+     * Indicates that the icon is the low res placeholder from the icon cache, and the full
+     * res icon still has to be loaded.
+     */
+    boolean usingLowResIcon;
+
     /**
      * The position of the item in a drag-and-drop operation.
      */
@@ -192,6 +198,7 @@ class ItemInfo {
         if (bitmap != null) {
             byte[] data = flattenBitmap(bitmap);
             values.put(LauncherSettings.Shortcuts.ICON, data);
+            values.put(LauncherSettings.Shortcuts.ICON_HASH, BitmapInterner.hashPixels(bitmap));
         }
     }
 
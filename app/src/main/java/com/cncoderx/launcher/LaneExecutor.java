@@ -0,0 +1,269 @@
+package com.cncoderx.launcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single worker thread fed by several queues, called lanes. Each lane runs its tasks in the
+ * order they were posted. Across lanes, the thread always picks the lane with the highest
+ * priority that has work, so urgent work doesn't wait behind a burst of unrelated tasks.
+ *
+ * When a lane has to observe the effects of another lane's tasks, declare it with
+ * {@link Lane#runsAfter}: its tasks then never overtake tasks of that lane that were posted
+ * before them, regardless of priorities. All tasks run on the same thread, one at a time.
+ */
+final class LaneExecutor {
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mHasWork = mLock.newCondition();
+    private final ArrayList<Lane> mLanes = new ArrayList<Lane>();
+    private final Lane mBarrierLane;
+    private final Thread mThread;
+    private long mNextSequence;
+
+    private static class Task {
+        final Runnable runnable;
+        final long sequence;
+        final long postedNanos;
+
+        Task(Runnable runnable, long sequence, long postedNanos) {
+            this.runnable = runnable;
+            this.sequence = sequence;
+            this.postedNanos = postedNanos;
+        }
+    }
+
+    /** A queue of tasks; see {@link LaneExecutor#newLane}. */
+    final class Lane {
+        final String name;
+        final int priority;
+        private final ArrayDeque<Task> mQueue = new ArrayDeque<Task>();
+        private final ArrayList<Lane> mRunsAfter = new ArrayList<Lane>();
+
+        // Metrics, guarded by mLock
+        private int mMaxDepth;
+        private long mCompleted;
+        private long mTotalWaitNanos;
+        private long mMaxWaitNanos;
+        private long mTotalRunNanos;
+        private long mMaxRunNanos;
+
+        private Lane(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        /**
+         * Makes the tasks of this lane wait for the tasks of "other" that were posted before
+         * them. Must be called before anything is posted.
+         */
+        Lane runsAfter(Lane other) {
+            mLock.lock();
+            try {
+                if (other == this || other.dependsOnLocked(this)) {
+                    throw new IllegalArgumentException(name + " can't run after " + other.name
+                            + ", that would be a cycle");
+                }
+                mRunsAfter.add(other);
+            } finally {
+                mLock.unlock();
+            }
+            return this;
+        }
+
+        private boolean dependsOnLocked(Lane lane) {
+            for (Lane after : mRunsAfter) {
+                if (after == lane || after.dependsOnLocked(lane)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns a snapshot of the metrics of this lane. */
+        LaneStats getStats() {
+            mLock.lock();
+            try {
+                LaneStats stats = new LaneStats();
+                stats.name = name;
+                stats.depth = mQueue.size();
+                stats.maxDepth = mMaxDepth;
+                stats.completed = mCompleted;
+                stats.totalWaitMillis = TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos);
+                stats.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos);
+                stats.totalRunMillis = TimeUnit.NANOSECONDS.toMillis(mTotalRunNanos);
+                stats.maxRunMillis = TimeUnit.NANOSECONDS.toMillis(mMaxRunNanos);
+                return stats;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /** Metrics of a lane: queue depth, and how long tasks waited and ran. */
+    static final class LaneStats {
+        String name;
+        int depth;
+        int maxDepth;
+        long completed;
+        long totalWaitMillis;
+        long maxWaitMillis;
+        long totalRunMillis;
+        long maxRunMillis;
+
+        @Override
+        public String toString() {
+            return name + ": depth=" + depth + " maxDepth=" + maxDepth
+                    + " completed=" + completed
+                    + " avgWait=" + (completed > 0 ? totalWaitMillis / completed : 0) + "ms"
+                    + " maxWait=" + maxWaitMillis + "ms"
+                    + " avgRun=" + (completed > 0 ? totalRunMillis / completed : 0) + "ms"
+                    + " maxRun=" + maxRunMillis + "ms";
+        }
+    }
+
+    LaneExecutor(String threadName) {
+        // Barriers wait for everything posted before them, see postBarrier()
+        mBarrierLane = new Lane("barrier", Integer.MAX_VALUE);
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, threadName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Adds a lane. Lanes with a higher priority are served first.
+     */
+    Lane newLane(String name, int priority) {
+        Lane lane = new Lane(name, priority);
+        mLock.lock();
+        try {
+            int index = 0;
+            while (index < mLanes.size() && mLanes.get(index).priority >= priority) {
+                index++;
+            }
+            mLanes.add(index, lane);
+        } finally {
+            mLock.unlock();
+        }
+        return lane;
+    }
+
+    /** Queues "r" at the end of "lane". */
+    void post(Lane lane, Runnable r) {
+        mLock.lock();
+        try {
+            lane.mQueue.add(new Task(r, mNextSequence++, System.nanoTime()));
+            lane.mMaxDepth = Math.max(lane.mMaxDepth, lane.mQueue.size());
+            mHasWork.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues "r" to run as soon as every task posted before it, in any lane, has run.
+     */
+    void postBarrier(Runnable r) {
+        post(mBarrierLane, r);
+    }
+
+    /** Returns whether the calling thread is the worker thread. */
+    boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    Thread getThread() {
+        return mThread;
+    }
+
+    /** Returns the metrics of every lane, by priority. */
+    ArrayList<LaneStats> getStats() {
+        ArrayList<Lane> lanes;
+        mLock.lock();
+        try {
+            lanes = new ArrayList<Lane>(mLanes);
+        } finally {
+            mLock.unlock();
+        }
+        ArrayList<LaneStats> stats = new ArrayList<LaneStats>(lanes.size());
+        for (Lane lane : lanes) {
+            stats.add(lane.getStats());
+        }
+        return stats;
+    }
+
+    private void loop() {
+        while (true) {
+            Lane lane;
+            Task task;
+            mLock.lock();
+            try {
+                while ((lane = nextLaneLocked()) == null) {
+                    mHasWork.awaitUninterruptibly();
+                }
+                task = lane.mQueue.poll();
+                long waitNanos = System.nanoTime() - task.postedNanos;
+                lane.mTotalWaitNanos += waitNanos;
+                lane.mMaxWaitNanos = Math.max(lane.mMaxWaitNanos, waitNanos);
+            } finally {
+                mLock.unlock();
+            }
+
+            final long start = System.nanoTime();
+            try {
+                task.runnable.run();
+            } finally {
+                long runNanos = System.nanoTime() - start;
+                mLock.lock();
+                try {
+                    lane.mCompleted++;
+                    lane.mTotalRunNanos += runNanos;
+                    lane.mMaxRunNanos = Math.max(lane.mMaxRunNanos, runNanos);
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+
+    private Lane nextLaneLocked() {
+        if (!mBarrierLane.mQueue.isEmpty()) {
+            // What was posted before the barrier goes first, by priority as usual, then the
+            // barrier itself
+            final long barrier = mBarrierLane.mQueue.peek().sequence;
+            for (Lane lane : mLanes) {
+                if (!lane.mQueue.isEmpty() && lane.mQueue.peek().sequence < barrier) {
+                    return resolveLocked(lane);
+                }
+            }
+            return mBarrierLane;
+        }
+        for (Lane lane : mLanes) {
+            if (!lane.mQueue.isEmpty()) {
+                return resolveLocked(lane);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lane whose head has to run before the head of "lane": the lane itself,
+     * unless a lane it runs after has an older task.
+     */
+    private Lane resolveLocked(Lane lane) {
+        Lane next = lane;
+        for (Lane after : lane.mRunsAfter) {
+            if (!after.mQueue.isEmpty()
+                    && after.mQueue.peek().sequence < next.mQueue.peek().sequence) {
+                next = after;
+            }
+        }
+        return next == lane ? lane : resolveLocked(next);
+    }
+}
@@ -24,6 +24,7 @@ import android.animation.PropertyValuesHolder;
 import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.StrictMode;
 import android.os.UserHandle;
@@ -34,6 +35,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 
@@ -69,6 +71,7 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
 
     private SharedPreferences mSharedPrefs;
     private LayoutInflater mInflater;
+    private IconCache mIconCache;
 
     private ArrayList<Runnable> mOnResumeCallbacks = new ArrayList<Runnable>();
     private static ArrayList<PendingAddArguments> sPendingAddList = new ArrayList<PendingAddArguments>();
@@ -98,6 +101,7 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
 
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         mInflater = LayoutInflater.from(this);
+        mIconCache = ((LauncherApplication) getApplication()).getIconCache();
 
         mLauncherView = findViewById(R.id.launcher);
         mWorkspace = mLauncherView.findViewById(R.id.workspace);
@@ -106,6 +110,14 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
         mWorkspace.setHapticFeedbackEnabled(false);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // The process may be killed from now on, don't lose the changes of the workspace
+        LauncherModel.flushDatabaseWritesFromMainThread(this);
+        ((LauncherApplication) getApplication()).getModel().saveWorkspaceSnapshot();
+    }
+
     private boolean waitUntilResume(Runnable run, boolean deletePreviousRunnables) {
         if (mPaused) {
             Log.i(TAG, "Deferring update until onResume");
@@ -167,24 +179,29 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
         for (int i = 0; i < count; i++) {
             // Use removeAllViewsInLayout() to avoid an extra requestLayout() and invalidate().
             final CellLayout layoutParent = (CellLayout) workspace.getChildAt(i);
+            for (int j = 0; j < layoutParent.getChildCount(); j++) {
+                cancelIconLoad(layoutParent.getChildAt(j));
+            }
             layoutParent.removeAllViewsInLayout();
         }
         mWidgetsToAdvance.clear();
     }
 
     /**
-     * Bind the items start-end from the list.
+     * Bind the items start-end from the list. Returns false if the launcher is paused, they
+     * are bound once it resumes then.
      *
      * Implementation of the method from LauncherModel.Callbacks.
      */
     @Override
-    public void bindItems(final ArrayList<ItemInfo> shortcuts, final int start, final int end) {
+    public boolean bindItems(final ArrayList<ItemInfo> shortcuts, final int start,
+            final int end) {
         if (waitUntilResume(new Runnable() {
             public void run() {
                 bindItems(shortcuts, start, end);
             }
         })) {
-            return;
+            return false;
         }
 
         // Get the list of added shortcuts and intersect them with the set of shortcuts here
@@ -218,6 +235,107 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
         }
 
         workspace.requestLayout();
+        return true;
+    }
+
+    /**
+     * Replaces the icons of shortcuts that are already bound, typically the low res icons
+     * used while loading.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindShortcutIconsUpdated(final ArrayList<ShortcutInfo> shortcuts) {
+        if (waitUntilResume(new Runnable() {
+            public void run() {
+                bindShortcutIconsUpdated(shortcuts);
+            }
+        })) {
+            return;
+        }
+
+        HashSet<ShortcutInfo> updated = new HashSet<ShortcutInfo>(shortcuts);
+        int count = mWorkspace.getChildCount();
+        for (int i = 0; i < count; i++) {
+            final CellLayout layout = (CellLayout) mWorkspace.getChildAt(i);
+            int childCount = layout.getChildCount();
+            for (int j = 0; j < childCount; j++) {
+                View child = layout.getChildAt(j);
+                Object tag = child.getTag();
+                if (tag instanceof ShortcutInfo && updated.contains(tag)) {
+                    applyShortcutInfo(child, (ShortcutInfo) tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes the titles of bound items after the locale changed. "apps" is the complete
+     * list of apps, in their new order.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindTitlesUpdated(final ArrayList<ShortcutInfo> shortcuts,
+            final ArrayList<ApplicationInfo> apps) {
+        if (waitUntilResume(new Runnable() {
+            public void run() {
+                bindTitlesUpdated(shortcuts, apps);
+            }
+        })) {
+            return;
+        }
+
+        HashSet<ShortcutInfo> updated = new HashSet<ShortcutInfo>(shortcuts);
+        int count = mWorkspace.getChildCount();
+        for (int i = 0; i < count; i++) {
+            final CellLayout layout = (CellLayout) mWorkspace.getChildAt(i);
+            int childCount = layout.getChildCount();
+            for (int j = 0; j < childCount; j++) {
+                View child = layout.getChildAt(j);
+                Object tag = child.getTag();
+                if (tag instanceof ShortcutInfo && updated.contains(tag)) {
+                    ShortcutInfo info = (ShortcutInfo) tag;
+                    TextView title = (TextView) child.findViewById(android.R.id.title);
+                    if (title != null) {
+                        title.setText(info.title);
+                    }
+                    child.setContentDescription(info.contentDescription);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the views of the "removed" items and adds views for the "added" ones, leaving
+     * the rest of the workspace as it is.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindItemsChanged(final ArrayList<ItemInfo> removed,
+            final ArrayList<ItemInfo> added) {
+        if (waitUntilResume(new Runnable() {
+            public void run() {
+                bindItemsChanged(removed, added);
+            }
+        })) {
+            return;
+        }
+
+        HashSet<ItemInfo> stale = new HashSet<ItemInfo>(removed);
+        int count = mWorkspace.getChildCount();
+        for (int i = 0; i < count; i++) {
+            final CellLayout layout = (CellLayout) mWorkspace.getChildAt(i);
+            for (int j = layout.getChildCount() - 1; j >= 0; j--) {
+                View child = layout.getChildAt(j);
+                if (stale.contains(child.getTag())) {
+                    cancelIconLoad(child);
+                    layout.removeView(child);
+                }
+            }
+        }
+        bindItems(added, 0, added.size());
     }
 
     @Override
@@ -369,18 +487,104 @@ public final class Launcher extends Activity implements LauncherModel.Callbacks
 //        }
     }
 
+    // A view that is detached for a moment, while it is dragged or moves to another
+    // CellLayout, doesn't need its icon until it is attached again. Views that are removed for
+    // good go through cancelIconLoad(), which also drops this listener.
+    private final View.OnAttachStateChangeListener mIconLoadCanceller =
+            new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View v) {
+                    if (v.getTag(R.id.icon_load_request) != null
+                            || !(v.getTag() instanceof ShortcutInfo)) {
+                        return;
+                    }
+                    final ShortcutInfo info = (ShortcutInfo) v.getTag();
+                    if (info.isIconLoaded()) {
+                        // Loaded for another view of the item meanwhile
+                        ImageView icon = (ImageView) v.findViewById(android.R.id.icon);
+                        icon.setImageBitmap(info.getIcon(mIconCache));
+                        v.removeOnAttachStateChangeListener(this);
+                    } else {
+                        requestIcon(v, info);
+                    }
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(View v) {
+                    IconCache.IconLoadRequest request =
+                            (IconCache.IconLoadRequest) v.getTag(R.id.icon_load_request);
+                    if (request != null) {
+                        request.cancel();
+                        v.setTag(R.id.icon_load_request, null);
+                    }
+                }
+            };
+
+    /** Cancels the icon load of a view that is removed or bound to another item. */
+    private void cancelIconLoad(View favorite) {
+        IconCache.IconLoadRequest request =
+                (IconCache.IconLoadRequest) favorite.getTag(R.id.icon_load_request);
+        if (request != null) {
+            request.cancel();
+            favorite.setTag(R.id.icon_load_request, null);
+        }
+        favorite.removeOnAttachStateChangeListener(mIconLoadCanceller);
+    }
+
     View createShortcut(ShortcutInfo info) {
         return createShortcut(R.layout.app_widget,
                 (ViewGroup) mWorkspace.getChildAt(mWorkspace.getCurrentPage()), info);
     }
 
     View createShortcut(int layoutResId, ViewGroup parent, ShortcutInfo info) {
-        return mInflater.inflate(layoutResId, parent, false);
+        View favorite = mInflater.inflate(layoutResId, parent, false);
+        applyShortcutInfo(favorite, info);
+        return favorite;
 //        BubbleTextView favorite = (BubbleTextView) mInflater.inflate(layoutResId, parent, false);
 //        favorite.applyFromShortcutInfo(info, mIconCache);
 //        favorite.setOnClickListener(this);
 //        return favorite;
     }
+
+    private void applyShortcutInfo(final View favorite, ShortcutInfo info) {
+        cancelIconLoad(favorite);
+        final ImageView icon = (ImageView) favorite.findViewById(android.R.id.icon);
+        if (icon != null) {
+            if (info.isIconLoaded()) {
+                icon.setImageBitmap(info.getIcon(mIconCache));
+            } else {
+                // Don't resolve or render the icon here, show what's in memory for now
+                Bitmap placeholder = mIconCache.getCachedIcon(info.intent, info.user);
+                icon.setImageBitmap(placeholder != null
+                        ? placeholder : mIconCache.getDefaultIcon());
+                requestIcon(favorite, info);
+                favorite.addOnAttachStateChangeListener(mIconLoadCanceller);
+            }
+        }
+        TextView title = (TextView) favorite.findViewById(android.R.id.title);
+        if (title != null) {
+            title.setText(info.title);
+        }
+        if (info.contentDescription != null) {
+            favorite.setContentDescription(info.contentDescription);
+        }
+        favorite.setTag(info);
+    }
+
+    /** Loads the icon of "info" in the background and shows it in "favorite" once loaded. */
+    private void requestIcon(final View favorite, ShortcutInfo info) {
+        final ImageView icon = (ImageView) favorite.findViewById(android.R.id.icon);
+        IconCache.IconLoadRequest request = info.updateIconAsync(mIconCache,
+                new IconCache.IconCallback() {
+                    @Override
+                    public void onIconLoaded(Bitmap b) {
+                        icon.setImageBitmap(b);
+                        favorite.setTag(R.id.icon_load_request, null);
+                        favorite.removeOnAttachStateChangeListener(mIconLoadCanceller);
+                    }
+                });
+        favorite.setTag(R.id.icon_load_request, request);
+    }
 }
 
 interface LauncherTransitionable {
@@ -36,18 +36,25 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Choreographer;
+import android.view.WindowManager;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.text.Collator;
@@ -56,8 +63,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -68,7 +89,8 @@ public class LauncherModel extends BroadcastReceiver {
     static final boolean DEBUG_LOADERS = false;
     static final String TAG = "Launcher.Model";
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    // Workspace icons bound at a time until what one costs is known, see FrameBudget
+    private static final int ITEMS_CHUNK = 6;
     private int mBatchSize; // 0 is all apps at once
     private int mAllAppsLoadDelay; // milliseconds between batches
 
@@ -87,18 +109,115 @@ public class LauncherModel extends BroadcastReceiver {
     private static final int MAIN_THREAD_BINDING_RUNNABLE = 1;
 
 
-    private static final HandlerThread sWorkerThread = new HandlerThread("launcher-loader");
+    // All model work runs on one thread, so the model itself needs no more locking than
+    // before. Lanes only decide the order: a reload isn't stuck behind a burst of database
+    // writes or item checks, but it never overtakes the writes and model updates that were
+    // queued before it, or it would load items that the updates then add again.
+    private static final LaneExecutor sWorker = new LaneExecutor("launcher-loader");
+    // The phases of loading and binding, for dumpState() and systrace
+    static final LoaderTrace sTrace = new LoaderTrace();
+    private static final LaneExecutor.Lane LANE_LOAD = sWorker.newLane("load", 3);
+    private static final LaneExecutor.Lane LANE_MUTATION = sWorker.newLane("model", 2);
+    private static final LaneExecutor.Lane LANE_PERSIST = sWorker.newLane("db", 1);
+    private static final LaneExecutor.Lane LANE_MAINTENANCE = sWorker.newLane("maintenance", 0);
     static {
-        sWorkerThread.start();
+        LANE_LOAD.runsAfter(LANE_PERSIST);
+        LANE_LOAD.runsAfter(LANE_MUTATION);
+        LANE_MUTATION.runsAfter(LANE_PERSIST);
     }
-    private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
+
+    // Writes to the shortcuts table are queued here and flushed together, see getWriteQueue()
+    private static final long WRITE_BEHIND_DELAY_MS = 500;
+    private static WriteBehindQueue sWriteQueue;
+    // How long flushDatabaseWritesFromMainThread() waits for the worker thread to write
+    private static final long FLUSH_WAIT_MS = 100;
+
+    // Loads all apps in parallel for the loader thread, see loadAllAppsByBatch(). Bounded, so
+    // that many profiles or batches don't starve the UI thread.
+    private static final int LOADER_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService sLoaderPool = Executors.newFixedThreadPool(
+            LOADER_POOL_SIZE, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "launcher-loader-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
     private boolean mWorkspaceLoaded;
+    // The change of the shortcuts table that the loaded workspace reflects, see
+    // RowChangeLog. Only used on the worker thread.
+    private long mWorkspaceSequence;
+
+    // The last bound workspace, shown at cold start while the database loads, see
+    // WorkspaceSnapshot
+    private static final String WORKSPACE_SNAPSHOT = "workspace.snapshot";
+    // Whether the snapshot was considered already. Only used on the worker thread.
+    private boolean mSnapshotBound;
     private boolean mAllAppsLoaded;
 
+    /**
+     * How far a loader that was stopped got with the workspace. The sBg collections then hold
+     * the rows up to lastId, read at the given change log sequence, and the next loader only
+     * reads the rows after it, as long as the rows it already read didn't change.
+     */
+    private static final class LoadCheckpoint {
+        final long sequence;
+        final long lastId;
+        final OccupancyGrid[] occupied;
+        final ActivityIndex activities;
+
+        LoadCheckpoint(long sequence, long lastId, OccupancyGrid[] occupied,
+                ActivityIndex activities) {
+            this.sequence = sequence;
+            this.lastId = lastId;
+            this.occupied = occupied;
+            this.activities = activities;
+        }
+    }
+    // Guarded by mLock
+    private LoadCheckpoint mLoadCheckpoint;
+
+    // The widgets and shortcuts, and the launcher they were all bound to since. Only used on
+    // the worker thread.
+    private final WidgetCatalog mWidgetCatalog;
+    private WeakReference<Callbacks> mWidgetsBoundTo;
+
+    // How many workspace items to bind at a time, and whether the next frame is watched for
+    // it. Only used on the main thread.
+    private final FrameBudget mBindBudget;
+    private boolean mWatchingFrames;
+    private final Choreographer.FrameCallback mFrameWatcher = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mWatchingFrames = false;
+            mBindBudget.onFrame(frameTimeNanos);
+        }
+    };
+
+    // Package events are handled together once this long passed since the first pending one
+    private static final long PACKAGE_EVENT_DELAY_MS = 100;
+    // user -> package -> PackageUpdatedTask op, guarded by itself
+    private final LinkedHashMap<UserHandle, LinkedHashMap<String, Integer>> mPendingPackageOps =
+            new LinkedHashMap<UserHandle, LinkedHashMap<String, Integer>>();
+    private final Handler mPackageEventTimer = new Handler(Looper.getMainLooper());
+    private final Runnable mSchedulePackageEvents = new Runnable() {
+        public void run() {
+            sWorker.post(LANE_MUTATION, new PackageUpdatedTask());
+        }
+    };
+
     // When we are loading pages synchronously, we can't just post the binding of items on the side
     // pages as this delays the rotation process.  Instead, we wait for a callback from the first
     // draw (in Workspace) to initiate the binding of the remaining side pages.  Any time we start
@@ -118,15 +237,20 @@ public class LauncherModel extends BroadcastReceiver {
 
     // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
     // LauncherModel to their ids
-    static final HashMap<Long, ItemInfo> sBgItemsIdMap = new HashMap<Long, ItemInfo>();
+    static final LongObjectMap<ItemInfo> sBgItemsIdMap = new LongObjectMap<ItemInfo>();
 
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
     //       shortcuts within folders).
     static final ArrayList<ItemInfo> sBgWorkspaceItems = new ArrayList<ItemInfo>();
 
-    // sBgDbIconCache is the set of ItemInfos that need to have their icons updated in the database
-    static final HashMap<Object, byte[]> sBgDbIconCache = new HashMap<Object, byte[]>();
+    // sBgWorkspaceIndex holds the items of sBgWorkspaceItems by screen, in the order they are
+    //       bound
+    static final WorkspaceIndex sBgWorkspaceIndex = new WorkspaceIndex();
+
+    // sBgDbIconCache is the set of ItemInfos that need to have their icons updated in the database,
+    //       with the hash of the icon they have there, or null if it has none
+    static final HashMap<Object, Long> sBgDbIconCache = new HashMap<Object, Long>();
     // </ only access in worker thread >
 
     private IconCache mIconCache;
@@ -145,15 +269,28 @@ public class LauncherModel extends BroadcastReceiver {
         public boolean setLoadOnResume();
         public int getCurrentWorkspaceScreen();
         public void startBinding();
-        public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
+        /**
+         * Binds the items from start to end. Returns false if binding them was put off until
+         * the launcher resumes.
+         */
+        public boolean bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
         public void finishBindingItems();
         public void bindAllApplications(ArrayList<ApplicationInfo> apps);
         public void bindAppsAdded(ArrayList<ApplicationInfo> apps);
         public void bindAppsUpdated(ArrayList<ApplicationInfo> apps);
+        public void bindShortcutIconsUpdated(ArrayList<ShortcutInfo> shortcuts);
+        public void bindTitlesUpdated(ArrayList<ShortcutInfo> shortcuts,
+                                      ArrayList<ApplicationInfo> apps);
+        public void bindItemsChanged(ArrayList<ItemInfo> removed, ArrayList<ItemInfo> added);
         public void bindComponentsRemoved(ArrayList<String> packageNames,
                                           ArrayList<ApplicationInfo> appInfos,
                                           boolean matchPackageNamesOnly, UserHandle user);
-        public void bindPackagesUpdated(ArrayList<Object> widgetsAndShortcuts);
+        /**
+         * Replaces the widgets and shortcuts of "packageNames" with "widgetsAndShortcuts",
+         * which are in sorted order. If packageNames is null they are all of them.
+         */
+        public void bindPackagesUpdated(ArrayList<String> packageNames,
+                                        ArrayList<Object> widgetsAndShortcuts);
         public boolean isAllAppsVisible();
         public boolean isAllAppsButtonRank(int rank);
         public void bindSearchablesChanged();
@@ -166,8 +303,8 @@ public class LauncherModel extends BroadcastReceiver {
         mBgAllAppsList = new AllAppsList(iconCache);
         mIconCache = iconCache;
 
-        mDefaultIcon = Utilities.createIconBitmap(
-                mIconCache.getFullResDefaultActivityIcon(), app);
+        mDefaultIcon = Utilities.internIcon(Utilities.createIconBitmap(
+                mIconCache.getFullResDefaultActivityIcon(), app));
 
         final Resources res = app.getResources();
         mAllAppsLoadDelay = res.getInteger(R.integer.config_allAppsBatchLoadDelay);
@@ -177,6 +314,19 @@ public class LauncherModel extends BroadcastReceiver {
         mLauncherApps = (LauncherApps) app.getSystemService(Context.LAUNCHER_APPS_SERVICE);
         mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
         mLauncherAppsCallback = new LauncherAppsCallback();
+        mWidgetCatalog = new WidgetCatalog(new WidgetSource(app));
+        final WindowManager windowManager =
+                (WindowManager) app.getSystemService(Context.WINDOW_SERVICE);
+        mBindBudget = new FrameBudget((long) (TimeUnit.SECONDS.toNanos(1)
+                / windowManager.getDefaultDisplay().getRefreshRate()), ITEMS_CHUNK);
+    }
+
+    /** Makes {@link #mBindBudget} see the start of the next frame. Main thread only. */
+    private void watchNextFrame() {
+        if (!mWatchingFrames) {
+            mWatchingFrames = true;
+            Choreographer.getInstance().postFrameCallback(mFrameWatcher);
+        }
     }
 
     /** Runs the specified runnable immediately if called from the main thread, otherwise it is
@@ -186,7 +336,7 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     private void runOnMainThread(Runnable r, int type) {
-        if (sWorkerThread.getThreadId() == Process.myTid()) {
+        if (sWorker.isCurrentThread()) {
             // If we are on the worker thread, post onto the main handler
             mHandler.post(r);
         } else {
@@ -195,22 +345,132 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     /** Runs the specified runnable immediately if called from the worker thread, otherwise it is
-     * posted on the worker thread handler. */
-    private static void runOnWorkerThread(Runnable r) {
-        if (sWorkerThread.getThreadId() == Process.myTid()) {
+     * posted on the given lane of the worker thread. */
+    private static void runOnWorkerThread(LaneExecutor.Lane lane, Runnable r) {
+        if (sWorker.isCurrentThread()) {
             r.run();
         } else {
-            // If we are not on the worker thread, then post to the worker handler
-            sWorker.post(r);
+            // If we are not on the worker thread, then post to the worker lane
+            sWorker.post(lane, r);
+        }
+    }
+
+    /** Column indices of the shortcuts table, see loadShortcut(). */
+    private static final class ShortcutColumns {
+        final int id;
+        final int intent;
+        final int title;
+        final int iconType;
+        final int icon;
+        final int iconPackage;
+        final int iconResource;
+        final int itemType;
+        final int screen;
+        final int cellX;
+        final int cellY;
+        final int spanX;
+        final int spanY;
+        final int profileId;
+        final int componentPackage;
+        final int componentClass;
+        final int iconHash;
+
+        ShortcutColumns(Cursor c) {
+            id = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts._ID);
+            intent = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.INTENT);
+            title = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.TITLE);
+            iconType = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_TYPE);
+            icon = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON);
+            iconPackage = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_PACKAGE);
+            iconResource = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_RESOURCE);
+            itemType = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ITEM_TYPE);
+            screen = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SCREEN);
+            cellX = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.CELLX);
+            cellY = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.CELLY);
+            spanX = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SPANX);
+            spanY = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SPANY);
+            profileId = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.PROFILE_ID);
+            componentPackage =
+                    c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.COMPONENT_PACKAGE);
+            componentClass = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.COMPONENT_CLASS);
+            iconHash = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_HASH);
+        }
+    }
+
+    /** Returns the profile of the current row, or null if it doesn't exist anymore. */
+    private UserHandle getUser(Cursor c, ShortcutColumns columns) {
+        return mUserManager.getUserForSerialNumber(c.getInt(columns.profileId));
+    }
+
+    /**
+     * Returns the intent of the current row, or null if it can't be parsed. The intent of an
+     * app is built from its component columns, only other intents are parsed.
+     */
+    private static Intent getIntent(Cursor c, ShortcutColumns columns) {
+        String packageName = c.getString(columns.componentPackage);
+        String className = c.getString(columns.componentClass);
+        if (packageName != null && className != null) {
+            return ShortcutInfo.makeLaunchIntent(new ComponentName(packageName, className));
+        }
+        try {
+            return Intent.parseUri(c.getString(columns.intent), 0);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the item for the current row of "c", whose intent is given by getIntent().
+     * Returns null if it can't be resolved.
+     */
+    private ShortcutInfo loadShortcut(Context context, PackageManager manager, Cursor c,
+            ShortcutColumns columns, Intent intent, UserHandle user,
+            HashMap<Object, CharSequence> labelCache, boolean useLowResIcon,
+            ActivityIndex activities) {
+        ShortcutInfo info;
+        int itemType = c.getInt(columns.itemType);
+        if (itemType == LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION) {
+            info = getShortcutInfo(manager, intent, user, context, c,
+                    columns.icon, columns.title, labelCache, useLowResIcon, activities);
+        } else {
+            info = getShortcutInfo(c, context, columns.iconType,
+                    columns.iconPackage, columns.iconResource, columns.icon,
+                    columns.title);
+
+            // App shortcuts that used to be automatically added to Launcher
+            // didn't always have the correct intent flags set, so do that
+            // here
+            if (intent.getAction() != null &&
+                intent.getCategories() != null &&
+                intent.getAction().equals(Intent.ACTION_MAIN) &&
+                intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
+                intent.addFlags(
+                    Intent.FLAG_ACTIVITY_NEW_TASK |
+                    Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+            }
+        }
+
+        if (info != null) {
+            info.intent = intent;
+            info.id = c.getLong(columns.id);
+            info.screen = c.getInt(columns.screen);
+            info.cellX = c.getInt(columns.cellX);
+            info.cellY = c.getInt(columns.cellY);
+            // A row without spans (null reads as 0) takes a single cell
+            info.spanX = Math.max(1, c.getInt(columns.spanX));
+            info.spanY = Math.max(1, c.getInt(columns.spanY));
+            info.intent.putExtra(ItemInfo.EXTRA_PROFILE, info.user);
         }
+        return info;
     }
 
     public Bitmap getFallbackIcon() {
-        return Bitmap.createBitmap(mDefaultIcon);
+        // Icons are shared and never drawn into, no need for a copy
+        return mDefaultIcon;
     }
 
     public void unbindItemInfosAndClearQueuedBindRunnables() {
-        if (sWorkerThread.getThreadId() == Process.myTid()) {
+        if (sWorker.isCurrentThread()) {
             throw new RuntimeException("Expected unbindLauncherItemInfos() to be called from the " +
                     "main thread");
         }
@@ -294,21 +554,17 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
         };
-        runOnWorkerThread(r);
+        runOnWorkerThread(LANE_MAINTENANCE, r);
     }
 
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Shortcuts.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
+        getWriteQueue(context).update(itemId, values);
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
-
-                // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     checkItemInfoLocked(itemId, item, stackTrace);
 
@@ -322,6 +578,8 @@ public class LauncherModel extends BroadcastReceiver {
                             if (!sBgWorkspaceItems.contains(modelItem)) {
                                 sBgWorkspaceItems.add(modelItem);
                             }
+                            // The item may have moved
+                            sBgWorkspaceIndex.put(modelItem);
                             break;
                         default:
                             break;
@@ -329,7 +587,7 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
         };
-        runOnWorkerThread(r);
+        runOnWorkerThread(LANE_MUTATION, r);
     }
 
     public void flushWorkerThread() {
@@ -344,7 +602,8 @@ public class LauncherModel extends BroadcastReceiver {
             };
 
         synchronized(waiter) {
-            runOnWorkerThread(waiter);
+            // Waits for the work queued so far in every lane, not only the database writes
+            sWorker.postBarrier(waiter);
             if (mLoaderTask != null) {
                 synchronized(mLoaderTask) {
                     mLoaderTask.notify();
@@ -408,11 +667,57 @@ public class LauncherModel extends BroadcastReceiver {
         updateItemInDatabaseHelper(context, values, item, "updateItemInDatabase");
     }
 
+    static synchronized WriteBehindQueue getWriteQueue(Context context) {
+        if (sWriteQueue == null) {
+            sWriteQueue = new WriteBehindQueue(context.getContentResolver(),
+                    WRITE_BEHIND_DELAY_MS, sWorker, LANE_PERSIST);
+        }
+        return sWriteQueue;
+    }
+
+    /**
+     * Writes the queued changes to the database before returning. Call it before the process
+     * may be killed, and before reading the shortcuts table.
+     */
+    static void flushDatabaseWrites(Context context) {
+        getWriteQueue(context).flush();
+    }
+
+    /**
+     * Like {@link #flushDatabaseWrites}, for the main thread. The writes are left to the worker
+     * thread if it gets to them within {@link #FLUSH_WAIT_MS}, so that the transaction doesn't
+     * run on the main thread, and are written on the calling thread if it is busy, with a load
+     * for example. Either way they are written before this returns.
+     */
+    static void flushDatabaseWritesFromMainThread(Context context) {
+        final WriteBehindQueue queue = getWriteQueue(context);
+        if (queue.size() == 0) {
+            return;
+        }
+        final CountDownLatch flushed = new CountDownLatch(1);
+        sWorker.post(LANE_PERSIST, new Runnable() {
+            public void run() {
+                queue.flush();
+                flushed.countDown();
+            }
+        });
+        try {
+            if (flushed.await(FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Waits for the worker's flush if it started meanwhile, the queue is empty then
+        queue.flush();
+    }
+
     /**
      * Returns true if the shortcuts already exists in the database.
      * we identify a shortcut by its title and intent.
      */
     static boolean shortcutExists(Context context, String title, Intent intent) {
+        flushDatabaseWrites(context);
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Shortcuts.CONTENT_URI,
             new String[] { "title", "intent" }, "title=? and intent=?",
@@ -431,6 +736,7 @@ public class LauncherModel extends BroadcastReceiver {
      * The ItemInfo.id is not set through this function.
      */
     static ArrayList<ItemInfo> getItemsInLocalCoordinates(Context context) {
+        flushDatabaseWrites(context);
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Shortcuts.CONTENT_URI, new String[] {
@@ -483,29 +789,28 @@ public class LauncherModel extends BroadcastReceiver {
         item.screen = screen;
 
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
         item.onAddToDatabase(context, values);
 
         LauncherApplication app = (LauncherApplication) context.getApplicationContext();
         item.id = app.getLauncherProvider().generateNewId();
         values.put(LauncherSettings.Shortcuts._ID, item.id);
         item.updateValuesWithCoordinates(values, item.cellX, item.cellY);
+        getWriteQueue(context).insert(item.id, values, notify);
 
+        final IconCache iconCache = app.getIconCache();
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(notify ? LauncherSettings.Shortcuts.CONTENT_URI :
-                        LauncherSettings.Shortcuts.CONTENT_URI_NO_NOTIFICATION, values);
-
-                // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     checkItemInfoLocked(item.id, item, stackTrace);
                     sBgItemsIdMap.put(item.id, item);
                     sBgWorkspaceItems.add(item);
+                    sBgWorkspaceIndex.put(item);
+                    updateIconPinLocked(iconCache, item, true);
                 }
             }
         };
-        runOnWorkerThread(r);
+        runOnWorkerThread(LANE_MUTATION, r);
     }
 
     /**
@@ -540,22 +845,43 @@ public class LauncherModel extends BroadcastReceiver {
      * @param item
      */
     static void deleteItemFromDatabase(Context context, final ItemInfo item) {
-        final ContentResolver cr = context.getContentResolver();
-        final Uri uriToDelete = LauncherSettings.Shortcuts.getContentUri(item.id, false);
+        getWriteQueue(context).delete(item.id);
+        final IconCache iconCache =
+                ((LauncherApplication) context.getApplicationContext()).getIconCache();
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(uriToDelete, null, null);
-
-                // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
-                    sBgWorkspaceItems.remove(item);
+                    if (sBgWorkspaceItems.remove(item)) {
+                        updateIconPinLocked(iconCache, item, false);
+                    }
+                    sBgWorkspaceIndex.remove(item);
                     sBgItemsIdMap.remove(item.id);
                     sBgDbIconCache.remove(item);
                 }
             }
         };
-        runOnWorkerThread(r);
+        runOnWorkerThread(LANE_MUTATION, r);
+    }
+
+    /**
+     * Pins (or unpins) the cached icon of an application shortcut that is bound on the
+     * workspace, so that the icon cache never evicts it while it is on screen.
+     */
+    private static void updateIconPinLocked(IconCache iconCache, ItemInfo item, boolean pin) {
+        if (!(item instanceof ShortcutInfo)
+                || item.itemType != LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION) {
+            return;
+        }
+        Intent intent = ((ShortcutInfo) item).intent;
+        if (intent == null || intent.getComponent() == null) {
+            return;
+        }
+        if (pin) {
+            iconCache.pin(intent.getComponent(), item.user);
+        } else {
+            iconCache.unpin(intent.getComponent(), item.user);
+        }
     }
 
     /**
@@ -574,27 +900,23 @@ public class LauncherModel extends BroadcastReceiver {
     private class LauncherAppsCallback extends LauncherApps.Callback {
         @Override
         public void onPackageChanged(String packageName, UserHandle user) {
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                    PackageUpdatedTask.OP_UPDATE, new String[] { packageName }, user));
+            enqueuePackageUpdated(PackageUpdatedTask.OP_UPDATE, new String[] { packageName }, user);
         }
 
         @Override
         public void onPackageRemoved(String packageName, UserHandle user) {
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                    PackageUpdatedTask.OP_REMOVE, new String[] { packageName }, user));
+            enqueuePackageUpdated(PackageUpdatedTask.OP_REMOVE, new String[] { packageName }, user);
         }
 
         @Override
         public void onPackageAdded(String packageName, UserHandle user) {
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                    PackageUpdatedTask.OP_ADD, new String[] { packageName }, user));
+            enqueuePackageUpdated(PackageUpdatedTask.OP_ADD, new String[] { packageName }, user);
         }
 
         @Override
         public void onPackagesAvailable(String[] packageNames, UserHandle user, boolean replacing) {
             if (!replacing) {
-                enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_ADD, packageNames, user));
+                enqueuePackageUpdated(PackageUpdatedTask.OP_ADD, packageNames, user);
                 if (mAppsCanBeOnRemoveableStorage) {
                     // Only rebind if we support removable storage. It catches the
                     // case where apps on the external sd card need to be reloaded.
@@ -602,8 +924,7 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             } else {
                 // If we are replacing then just update the packages in the list
-                enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_UPDATE, packageNames, user));
+                enqueuePackageUpdated(PackageUpdatedTask.OP_UPDATE, packageNames, user);
             }
         }
 
@@ -611,8 +932,7 @@ public class LauncherModel extends BroadcastReceiver {
         public void onPackagesUnavailable(String[] packageNames, UserHandle user,
                 boolean replacing) {
             if (!replacing) {
-                enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_UNAVAILABLE, packageNames, user));
+                enqueuePackageUpdated(PackageUpdatedTask.OP_UNAVAILABLE, packageNames, user);
             }
         }
     }
@@ -627,8 +947,9 @@ public class LauncherModel extends BroadcastReceiver {
 
         final String action = intent.getAction();
         if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
-            // If we have changed locale we need to clear out the labels in all apps/workspace.
-            forceReload();
+            // If we have changed locale we need to refresh the labels in all apps/workspace.
+            // Icons don't depend on the locale, so there is no need to reload everything.
+            sWorker.post(LANE_MUTATION, new RelabelTask());
         } else if (Intent.ACTION_CONFIGURATION_CHANGED.equals(action)) {
              // Check if configuration change was an mcc/mnc change which would affect app resources
              // and we would need to clear out the labels in all apps/workspace. Same handling as
@@ -667,8 +988,28 @@ public class LauncherModel extends BroadcastReceiver {
             // mWorkspaceLoaded to true later
             stopLoaderLocked();
             if (resetAllAppsLoaded) mAllAppsLoaded = false;
-            if (resetWorkspaceLoaded) mWorkspaceLoaded = false;
+            if (resetWorkspaceLoaded) {
+                mWorkspaceLoaded = false;
+                mLoadCheckpoint = null;
+            }
+        }
+    }
+
+    /**
+     * Called when the shortcuts table changed. Once the workspace is loaded, only the rows that
+     * changed are read again and only their cells are rebound.
+     */
+    public void onWorkspaceChanged() {
+        synchronized (mLock) {
+            if (mWorkspaceLoaded) {
+                sWorker.post(LANE_MUTATION, new WorkspaceDiffTask());
+                return;
+            }
         }
+        // If the database has ever changed, then we really need to force a reload of the
+        // workspace on the next load
+        resetLoadedState(false, true);
+        startLoaderFromBackground();
     }
 
     /**
@@ -726,8 +1067,8 @@ public class LauncherModel extends BroadcastReceiver {
                 if (synchronousBindPage > -1 && mAllAppsLoaded && mWorkspaceLoaded) {
                     mLoaderTask.runBindSynchronousPage(synchronousBindPage);
                 } else {
-                    sWorkerThread.setPriority(Thread.NORM_PRIORITY);
-                    sWorker.post(mLoaderTask);
+                    sWorker.getThread().setPriority(Thread.NORM_PRIORITY);
+                    sWorker.post(LANE_LOAD, mLoaderTask);
                 }
             }
         }
@@ -768,6 +1109,14 @@ public class LauncherModel extends BroadcastReceiver {
         private boolean mLoadAndBindStepFinished;
 
         private HashMap<Object, CharSequence> mLabelCache;
+        // The activities of all profiles, listed once for both the workspace and all apps.
+        // Set before the loading of the workspace, cleared once all apps are loaded.
+        private ActivityIndex mActivities;
+
+        // All apps that were loaded with a low res icon, and the activities they came from
+        private final ArrayList<ApplicationInfo> mLowResApps = new ArrayList<ApplicationInfo>();
+        private final ArrayList<LauncherActivityInfo> mLowResActivities =
+                new ArrayList<LauncherActivityInfo>();
 
         LoaderTask(Context context, boolean isLaunching) {
             mContext = context;
@@ -792,6 +1141,14 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             if (!mWorkspaceLoaded) {
+                if (!mSnapshotBound) {
+                    // Cold start, show the current page right away
+                    mSnapshotBound = true;
+                    bindWorkspaceSnapshot();
+                    if (mStopped) {
+                        return;
+                    }
+                }
                 loadWorkspace();
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
@@ -799,12 +1156,90 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                     mWorkspaceLoaded = true;
                 }
+                saveWorkspaceSnapshot();
             }
 
             // Bind the workspace
             bindWorkspace(-1);
         }
 
+        /**
+         * Binds the current page from the snapshot saved by the last process, with one read
+         * and without resolving anything. The regular bind of the loaded workspace replaces it.
+         */
+        private void bindWorkspaceSnapshot() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return;
+            }
+            List<WorkspaceSnapshot.Entry> entries;
+            try {
+                entries = WorkspaceSnapshot.decode(getWorkspaceSnapshotFile().readFully());
+            } catch (IOException e) {
+                // There is no snapshot yet
+                return;
+            }
+            if (entries == null) {
+                Log.w(TAG, "Ignoring invalid workspace snapshot");
+                return;
+            }
+
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            final WorkspaceIndex index = new WorkspaceIndex();
+            for (WorkspaceSnapshot.Entry entry : entries) {
+                if (entry.screen != currentScreen) {
+                    continue;
+                }
+                UserHandle user = mUserManager.getUserForSerialNumber(entry.profileSerial);
+                if (user == null) {
+                    continue;
+                }
+                ShortcutInfo info = new ShortcutInfo();
+                try {
+                    info.intent = Intent.parseUri(entry.intent, 0);
+                } catch (URISyntaxException e) {
+                    continue;
+                }
+                info.id = entry.id;
+                info.itemType = entry.itemType;
+                info.screen = entry.screen;
+                info.cellX = entry.cellX;
+                info.cellY = entry.cellY;
+                info.spanX = entry.spanX;
+                info.spanY = entry.spanY;
+                info.user = user;
+                info.title = entry.title;
+                info.contentDescription = entry.title;
+                info.intent.putExtra(ItemInfo.EXTRA_PROFILE, user);
+                if (info.itemType != LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION) {
+                    // The icons of shortcuts are in the database, app icons are loaded
+                    // asynchronously from the icon cache when they are bound
+                    info.setIcon(getFallbackIcon());
+                    info.usingFallbackIcon = true;
+                }
+                index.put(info);
+            }
+            final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>(index.size());
+            index.getScreen(currentScreen, items);
+
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                    }
+                }
+            }, MAIN_THREAD_BINDING_RUNNABLE);
+            bindWorkspaceItems(oldCallbacks, items, null);
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    if (tryGetCallbacks(oldCallbacks) != null) {
+                        sTrace.mark(LoaderTrace.SNAPSHOT_BOUND);
+                    }
+                }
+            }, MAIN_THREAD_BINDING_RUNNABLE);
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -841,6 +1276,125 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /**
+         * Loads the full res icons of the workspace shortcuts that were bound with a low res
+         * one, a page at a time, nearest pages to the current one first. Each page is rebound
+         * with {@link Callbacks#bindShortcutIconsUpdated} as soon as it's done.
+         */
+        private void upgradeWorkspaceIcons() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                Log.w(TAG, "LoaderTask running with no launcher (upgradeWorkspaceIcons)");
+                return;
+            }
+
+            final SparseArray<ArrayList<ShortcutInfo>> pages =
+                    new SparseArray<ArrayList<ShortcutInfo>>();
+            synchronized (sBgLock) {
+                for (ItemInfo item : sBgWorkspaceItems) {
+                    if (item instanceof ShortcutInfo && item.usingLowResIcon) {
+                        ArrayList<ShortcutInfo> page = pages.get(item.screen);
+                        if (page == null) {
+                            page = new ArrayList<ShortcutInfo>();
+                            pages.put(item.screen, page);
+                        }
+                        page.add((ShortcutInfo) item);
+                    }
+                }
+            }
+            if (pages.size() == 0) {
+                return;
+            }
+
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            final ArrayList<Integer> screens = new ArrayList<Integer>();
+            for (int i = 0; i < pages.size(); i++) {
+                screens.add(pages.keyAt(i));
+            }
+            Collections.sort(screens, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    int result = Math.abs(lhs - currentScreen) - Math.abs(rhs - currentScreen);
+                    return result != 0 ? result : lhs - rhs;
+                }
+            });
+
+            int count = 0;
+            for (int screen : screens) {
+                if (mStopped) {
+                    return;
+                }
+                final ArrayList<ShortcutInfo> updated = new ArrayList<ShortcutInfo>();
+                final long t = sTrace.begin(LoaderTrace.ICON_RENDER);
+                for (ShortcutInfo info : pages.get(screen)) {
+                    LauncherActivityInfo lai =
+                            resolveActivity(info.intent, info.user, mActivities);
+                    if (lai == null) {
+                        // Leave it to the package update that is going to remove it
+                        continue;
+                    }
+                    mIconCache.getTitleAndIcon(info, info.intent.getComponent(), lai,
+                            mLabelCache, false);
+                    updated.add(info);
+                }
+                sTrace.end(LoaderTrace.ICON_RENDER, t);
+                if (updated.isEmpty()) {
+                    continue;
+                }
+                count += updated.size();
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindShortcutIconsUpdated(updated);
+                        }
+                    }
+                });
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "upgraded " + count + " workspace icons");
+            }
+        }
+
+        /**
+         * Loads the full res icons of the apps that were bound with a low res one, and rebinds
+         * them with {@link Callbacks#bindAppsUpdated} in batches of mBatchSize.
+         */
+        private void upgradeAllAppsIcons() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                Log.w(TAG, "LoaderTask running with no launcher (upgradeAllAppsIcons)");
+                return;
+            }
+            final int N = mLowResApps.size();
+            final int batchSize = mBatchSize == 0 ? N : mBatchSize;
+            int i = 0;
+            while (i < N && !mStopped) {
+                final ArrayList<ApplicationInfo> updated = new ArrayList<ApplicationInfo>();
+                final long t = sTrace.begin(LoaderTrace.ICON_RENDER);
+                for (int j = 0; i < N && j < batchSize; j++, i++) {
+                    ApplicationInfo app = mLowResApps.get(i);
+                    mIconCache.getTitleAndIcon(app, mLowResActivities.get(i), mLabelCache,
+                            false);
+                    updated.add(app);
+                }
+                sTrace.end(LoaderTrace.ICON_RENDER, t);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindAppsUpdated(updated);
+                        }
+                    }
+                });
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "upgraded " + i + " all apps icons");
+            }
+            mLowResApps.clear();
+            mLowResActivities.clear();
+        }
+
         void runBindSynchronousPage(int synchronousBindPage) {
             if (synchronousBindPage < 0) {
                 // Ensure that we have a valid page index to load synchronously
@@ -911,10 +1465,22 @@ public class LauncherModel extends BroadcastReceiver {
                 }
                 waitForIdle();
 
+                // Replace the low res workspace icons, starting with the visible page
+                if (DEBUG_LOADERS) Log.d(TAG, "step 1.5: upgrading workspace icons");
+                upgradeWorkspaceIcons();
+
+                if (mStopped) {
+                    break keep_running;
+                }
+
                 // Second step. Load all apps.
                 if (DEBUG_LOADERS) Log.d(TAG, "step 2: loading all apps");
                 loadAndBindAllApps();
 
+                if (DEBUG_LOADERS) Log.d(TAG, "step 2.5: upgrading all apps icons");
+                upgradeAllAppsIcons();
+                mActivities = null;
+
                 // Restore the default thread priority after we are done loading items
                 synchronized (mLock) {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
@@ -981,146 +1547,160 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
-        // check & update map of what's occupied; used to discard overlapping/invalid items
-        private boolean checkItemPlacement(ItemInfo occupied[][][], ItemInfo item) {
-            int containerIndex = item.screen;
-
-            // Check if any workspace icons overlap with each other
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    if (occupied[containerIndex][x][y] != null) {
-                        Log.e(TAG, "Error loading shortcut " + item
-                            + " into cell (" + containerIndex + "-" + item.screen + ":"
-                            + x + "," + y
-                            + ") occupied by "
-                            + occupied[containerIndex][x][y]);
-                        return false;
+        /**
+         * Returns the checkpoint of the last stopped loader, or null if there is none or the
+         * rows it read changed since.
+         */
+        private LoadCheckpoint takeLoadCheckpoint() {
+            final LoadCheckpoint checkpoint;
+            synchronized (mLock) {
+                checkpoint = mLoadCheckpoint;
+                mLoadCheckpoint = null;
+            }
+            if (checkpoint == null) {
+                return null;
+            }
+            RowChangeLog.Delta delta =
+                    mApp.getLauncherProvider().getChangeLog().getChangesSince(checkpoint.sequence);
+            if (delta == null) {
+                return null;
+            }
+            synchronized (sBgLock) {
+                // Rows after lastId are read anyway, unless the model already has them
+                for (long id : delta.changed) {
+                    if (id <= checkpoint.lastId || sBgItemsIdMap.containsKey(id)) {
+                        return null;
                     }
                 }
-            }
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    occupied[containerIndex][x][y] = item;
+                // Such as the rows the stopped loader deleted itself
+                for (long id : delta.removed) {
+                    if (sBgItemsIdMap.containsKey(id)) {
+                        return null;
+                    }
                 }
             }
+            return checkpoint;
+        }
 
-            return true;
+        private void saveLoadCheckpoint(LoadCheckpoint checkpoint) {
+            synchronized (mLock) {
+                mLoadCheckpoint = checkpoint;
+            }
         }
 
         private void loadWorkspace() {
-            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
             final PackageManager manager = context.getPackageManager();
 
             // Make sure the default workspace is loaded, if needed
             mApp.getLauncherProvider().loadDefaultWorkspaceIfNecessary(0, false);
+            flushDatabaseWrites(context);
+
+            final long sequence;
+            long lastId;
+            final OccupancyGrid occupied[];
+            final LoadCheckpoint checkpoint = takeLoadCheckpoint();
+            if (checkpoint != null) {
+                // Carry on where the stopped loader left off
+                sequence = checkpoint.sequence;
+                lastId = checkpoint.lastId;
+                occupied = checkpoint.occupied;
+                mActivities = checkpoint.activities;
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "resuming the workspace after id " + lastId);
+                }
+            } else {
+                synchronized (sBgLock) {
+                    sBgWorkspaceItems.clear();
+                    sBgWorkspaceIndex.clear();
+                    sBgItemsIdMap.clear();
+                    sBgDbIconCache.clear();
+                    mIconCache.unpinAll();
+                    // Changes made from now on are applied by WorkspaceDiffTask. Rows that
+                    // change while they are queried below are simply read twice.
+                    sequence = mApp.getLauncherProvider().getChangeLog().getSequence();
+                }
+                lastId = -1;
+                // +1 for the hotseat (it can be larger than the workspace)
+                occupied = new OccupancyGrid[Launcher.SCREEN_COUNT + 1];
+                mActivities = queryActivities();
+            }
+            mWorkspaceSequence = sequence;
+            if (mStopped) {
+                saveLoadCheckpoint(new LoadCheckpoint(sequence, lastId, occupied, mActivities));
+                return;
+            }
 
+            final long t = sTrace.begin(LoaderTrace.QUERY);
             synchronized (sBgLock) {
-                sBgWorkspaceItems.clear();
-                sBgItemsIdMap.clear();
-                sBgDbIconCache.clear();
-
-                final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+                long[] itemsToRemove = new long[8];
+                int itemsToRemoveCount = 0;
 
+                // Rows are read in the order of their ids, so that a stopped load can be
+                // resumed from the last one read
                 final Cursor c = contentResolver.query(
-                        LauncherSettings.Shortcuts.CONTENT_URI, null, null, null, null);
-
-                // +1 for the hotseat (it can be larger than the workspace)
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final ItemInfo occupied[][][] =
-                        new ItemInfo[Launcher.SCREEN_COUNT + 1][mCellCountX + 1][mCellCountY + 1];
+                        LauncherSettings.Shortcuts.CONTENT_URI, null,
+                        LauncherSettings.Shortcuts._ID + ">?",
+                        new String[] { String.valueOf(lastId) },
+                        LauncherSettings.Shortcuts._ID);
 
                 try {
-                    final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts._ID);
-                    final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.INTENT);
-                    final int titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.TITLE);
-                    final int iconTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_TYPE);
-                    final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON);
-                    final int iconPackageIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_PACKAGE);
-                    final int iconResourceIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ICON_RESOURCE);
-                    final int itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.ITEM_TYPE);
-                    final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SCREEN);
-                    final int cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.CELLX);
-                    final int cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.CELLY);
-                    final int spanXIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SPANX);
-                    final int spanYIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.SPANY);
-                    final int profileIdIndex = c.getColumnIndexOrThrow(LauncherSettings.Shortcuts.PROFILE_ID);
+                    final ShortcutColumns columns = new ShortcutColumns(c);
+                    final int idIndex = columns.id;
                     //final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
                     //final int displayModeIndex = c.getColumnIndexOrThrow(
                     //        LauncherSettings.Favorites.DISPLAY_MODE);
 
                     ShortcutInfo info;
-                    String intentDescription;
                     long id;
                     Intent intent;
                     UserHandle user;
 
                     while (!mStopped && c.moveToNext()) {
+                        lastId = c.getLong(idIndex);
                         try {
-                            intentDescription = c.getString(intentIndex);
-                            int serialNumber = c.getInt(profileIdIndex);
-                            user = mUserManager.getUserForSerialNumber(serialNumber);
+                            user = getUser(c, columns);
                             // If the user doesn't exist anymore, skip.
                             if (user == null) {
-                                itemsToRemove.add(c.getLong(idIndex));
+                                if (itemsToRemoveCount == itemsToRemove.length) {
+                                    itemsToRemove = Arrays.copyOf(itemsToRemove,
+                                            itemsToRemoveCount * 2);
+                                }
+                                itemsToRemove[itemsToRemoveCount++] = lastId;
                                 continue;
                             }
-                            try {
-                                intent = Intent.parseUri(intentDescription, 0);
-                            } catch (URISyntaxException e) {
+                            intent = getIntent(c, columns);
+                            if (intent == null) {
                                 continue;
                             }
 
-                            int itemType = c.getInt(itemTypeIndex);
-                            if (itemType == LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION) {
-                                info = getShortcutInfo(manager, intent, user, context, c,
-                                        iconIndex, titleIndex, mLabelCache);
-                            } else {
-                                info = getShortcutInfo(c, context, iconTypeIndex,
-                                        iconPackageIndex, iconResourceIndex, iconIndex,
-                                        titleIndex);
-
-                                // App shortcuts that used to be automatically added to Launcher
-                                // didn't always have the correct intent flags set, so do that
-                                // here
-                                if (intent.getAction() != null &&
-                                    intent.getCategories() != null &&
-                                    intent.getAction().equals(Intent.ACTION_MAIN) &&
-                                    intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
-                                    intent.addFlags(
-                                        Intent.FLAG_ACTIVITY_NEW_TASK |
-                                        Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
-                                }
-                            }
+                            // Low res icons are enough to show the workspace, the full res ones
+                            // are loaded once it's bound
+                            info = loadShortcut(context, manager, c, columns, intent, user,
+                                    mLabelCache, true, mActivities);
 
                             if (info != null) {
-                                info.intent = intent;
-                                info.id = c.getLong(idIndex);
-                                info.screen = c.getInt(screenIndex);
-                                info.cellX = c.getInt(cellXIndex);
-                                info.cellY = c.getInt(cellYIndex);
-                                info.intent.putExtra(ItemInfo.EXTRA_PROFILE, info.user);
-
                                 // check & update map of what's occupied
                                 if (!checkItemPlacement(occupied, info)) {
-                                    break;
+                                    continue;
                                 }
 
                                 sBgWorkspaceItems.add(info);
+                                sBgWorkspaceIndex.put(info);
                                 sBgItemsIdMap.put(info.id, info);
+                                updateIconPinLocked(mIconCache, info, true);
 
                                 // now that we've loaded everthing re-save it with the
                                 // icon in case it disappears somehow.
-                                queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex);
+                                queueIconToBeChecked(sBgDbIconCache, info, c,
+                                        columns.iconHash);
                             } else {
                                 // Failed to load the shortcut, probably because the
                                 // activity manager couldn't resolve it (maybe the app
                                 // was uninstalled), or the db row was somehow screwed up.
                                 // Delete it.
-                                id = c.getLong(idIndex);
+                                id = lastId;
                                 Log.e(TAG, "Error loading shortcut " + id + ", removing it");
                                 contentResolver.delete(LauncherSettings.Shortcuts.getContentUri(
                                             id, false), null, null);
@@ -1133,11 +1713,12 @@ public class LauncherModel extends BroadcastReceiver {
                     c.close();
                 }
 
-                if (itemsToRemove.size() > 0) {
+                if (itemsToRemoveCount > 0) {
                     ContentProviderClient client = contentResolver.acquireContentProviderClient(
                                     LauncherSettings.Shortcuts.CONTENT_URI);
                     // Remove dead items
-                    for (long id : itemsToRemove) {
+                    for (int i = 0; i < itemsToRemoveCount; i++) {
+                        final long id = itemsToRemove[i];
                         if (DEBUG_LOADERS) {
                             Log.d(TAG, "Removed id = " + id);
                         }
@@ -1151,8 +1732,14 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
 
+                sTrace.end(LoaderTrace.QUERY, t);
+                if (mStopped) {
+                    saveLoadCheckpoint(
+                            new LoadCheckpoint(sequence, lastId, occupied, mActivities));
+                    return;
+                }
+
                 if (DEBUG_LOADERS) {
-                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
                     Log.d(TAG, "workspace layout: ");
                     for (int y = 0; y < mCellCountY; y++) {
                         String line = "";
@@ -1161,7 +1748,8 @@ public class LauncherModel extends BroadcastReceiver {
                                 line += " | ";
                             }
                             for (int x = 0; x < mCellCountX; x++) {
-                                line += ((occupied[s][x][y] != null) ? "#" : ".");
+                                line += ((occupied[s] != null && occupied[s].isOccupied(x, y))
+                                        ? "#" : ".");
                             }
                         }
                         Log.d(TAG, "[ " + line + " ]");
@@ -1170,78 +1758,64 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
-        /** Filters the set of items who are directly or indirectly (via another container) on the
-         * specified screen. */
-        private void filterCurrentWorkspaceItems(int currentScreen,
-                ArrayList<ItemInfo> allWorkspaceItems,
-                ArrayList<ItemInfo> currentScreenItems,
-                ArrayList<ItemInfo> otherScreenItems) {
-            // Purge any null ItemInfos
-            Iterator<ItemInfo> iter = allWorkspaceItems.iterator();
-            while (iter.hasNext()) {
-                ItemInfo i = iter.next();
-                if (i == null) {
-                    iter.remove();
-                }
-            }
-
-            // If we aren't filtering on a screen, then the set of items to load is the full set of
-            // items given.
-            if (currentScreen < 0) {
-                currentScreenItems.addAll(allWorkspaceItems);
+        /**
+         * Binds "workspaceItems" on the main thread, as many at a time as fit before the next
+         * frame, see {@link FrameBudget}. If this runs on the main thread, for the page that is
+         * bound synchronously, they are all bound right away.
+         */
+        private void bindWorkspaceItems(final Callbacks oldCallbacks,
+                final ArrayList<ItemInfo> workspaceItems,
+                ArrayList<Runnable> deferredBindRunnables) {
+            final int N = workspaceItems.size();
+            if (N == 0 || mStopped) {
+                return;
             }
-
-            // Order the set of items by their containers first, this allows use to walk through the
-            // list sequentially, build up a list of containers that are in the specified screen,
-            // as well as all items in those containers.
-            for (ItemInfo info : allWorkspaceItems) {
-                if (info.screen == currentScreen) {
-                    currentScreenItems.add(info);
-                } else {
-                    otherScreenItems.add(info);
+            if (deferredBindRunnables == null && !sWorker.isCurrentThread()) {
+                Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                if (callbacks != null) {
+                    final long t = sTrace.begin(LoaderTrace.BIND_CHUNK);
+                    callbacks.bindItems(workspaceItems, 0, N);
+                    sTrace.end(LoaderTrace.BIND_CHUNK, t);
                 }
+                return;
             }
-        }
-
-        /** Sorts the set of items by hotseat, workspace (spatially from top to bottom, left to
-         * right) */
-        private void sortWorkspaceItemsSpatially(ArrayList<ItemInfo> workspaceItems) {
-            // XXX: review this
-            Collections.sort(workspaceItems, new Comparator<ItemInfo>() {
-                @Override
-                public int compare(ItemInfo lhs, ItemInfo rhs) {
-                    int cellCountX = LauncherModel.getCellCountX();
-                    int cellCountY = LauncherModel.getCellCountY();
-                    int screenOffset = cellCountX * cellCountY;
-                    long lr = (lhs.screen * screenOffset + lhs.cellY * cellCountX + lhs.cellX);
-                    long rr = (rhs.screen * screenOffset + rhs.cellY * cellCountX + rhs.cellX);
-                    return (int) (lr - rr);
-                }
-            });
-        }
 
-        private void bindWorkspaceItems(final Callbacks oldCallbacks, final ArrayList<ItemInfo> workspaceItems, ArrayList<Runnable> deferredBindRunnables) {
-            final boolean postOnMainThread = (deferredBindRunnables != null);
+            final Runnable r = new Runnable() {
+                private int mNext;
 
-            // Bind the workspace items
-            int N = workspaceItems.size();
-            for (int i = 0; i < N; i += ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
-                final Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize);
+                @Override
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks == null) {
+                        return;
+                    }
+                    watchNextFrame();
+                    final int start = mNext;
+                    final long t = sTrace.begin(LoaderTrace.BIND_CHUNK);
+                    final int end = start + mBindBudget.itemsToBind(t, N - start);
+                    final boolean bound = callbacks.bindItems(workspaceItems, start, end);
+                    sTrace.end(LoaderTrace.BIND_CHUNK, t);
+                    mNext = end;
+                    if (!bound) {
+                        // Paused, nothing was bound to measure. The rest is put off in one go,
+                        // there are no frames to fit it in until the launcher resumes.
+                        if (end < N) {
+                            callbacks.bindItems(workspaceItems, end, N);
+                            mNext = N;
                         }
+                        return;
+                    }
+                    mBindBudget.onBound(end - start, System.nanoTime() - t);
+                    if (end < N) {
+                        // Ahead of what was queued after these items, but after the frame
+                        mHandler.postAtFrontOfQueue(this, MAIN_THREAD_BINDING_RUNNABLE);
                     }
-                };
-                if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
-                } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
                 }
+            };
+            if (deferredBindRunnables != null) {
+                deferredBindRunnables.add(r);
+            } else {
+                mHandler.post(r, MAIN_THREAD_BINDING_RUNNABLE);
             }
         }
 
@@ -1249,7 +1823,6 @@ public class LauncherModel extends BroadcastReceiver {
          * Binds all loaded data to actual views on the main thread.
          */
         private void bindWorkspace(int synchronizeBindPage) {
-            final long t = SystemClock.uptimeMillis();
             Runnable r;
 
             // Don't use these two variables in any of the callback runnables.
@@ -1268,21 +1841,19 @@ public class LauncherModel extends BroadcastReceiver {
             // Load all the items that are on the current page first (and in the process, unbind
             // all the existing workspace items before we call startBinding() below.
             unbindWorkspaceItemsOnMainThread();
-            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
-            HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                itemsIdMap.putAll(sBgItemsIdMap);
-            }
-
             ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
             ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
 
-            // Separate the items that are on the current screen, and all the other remaining items
-            filterCurrentWorkspaceItems(currentScreen, workspaceItems, currentWorkspaceItems, otherWorkspaceItems);
-
-            sortWorkspaceItemsSpatially(currentWorkspaceItems);
-            sortWorkspaceItemsSpatially(otherWorkspaceItems);
+            // Separate the items that are on the current screen, and all the other remaining
+            // items, each already in the order they are bound in
+            synchronized (sBgLock) {
+                if (currentScreen < 0) {
+                    sBgWorkspaceIndex.getAll(currentWorkspaceItems);
+                } else {
+                    sBgWorkspaceIndex.getScreen(currentScreen, currentWorkspaceItems);
+                    sBgWorkspaceIndex.getOtherScreens(currentScreen, otherWorkspaceItems);
+                }
+            }
 
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
@@ -1297,6 +1868,14 @@ public class LauncherModel extends BroadcastReceiver {
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, null);
+            r = new Runnable() {
+                public void run() {
+                    if (tryGetCallbacks(oldCallbacks) != null) {
+                        sTrace.mark(LoaderTrace.FIRST_PAGE_BOUND);
+                    }
+                }
+            };
+            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -1320,12 +1899,7 @@ public class LauncherModel extends BroadcastReceiver {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
                         callbacks.finishBindingItems();
-                    }
-
-                    // If we're profiling, ensure this is the last thing in the queue.
-                    if (DEBUG_LOADERS) {
-                        Log.d(TAG, "bound workspace in "
-                            + (SystemClock.uptimeMillis()-t) + "ms");
+                        sTrace.mark(LoaderTrace.WORKSPACE_BOUND);
                     }
 
                     mIsLoadingAndBindingWorkspace = false;
@@ -1369,18 +1943,16 @@ public class LauncherModel extends BroadcastReceiver {
                     = (ArrayList<ApplicationInfo>) mBgAllAppsList.data.clone();
             Runnable r = new Runnable() {
                 public void run() {
-                    final long t = SystemClock.uptimeMillis();
                     final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        final long t = sTrace.begin(LoaderTrace.BIND_CHUNK);
                         callbacks.bindAllApplications(list);
-                    }
-                    if (DEBUG_LOADERS) {
-                        Log.d(TAG, "bound all " + list.size() + " apps from cache in "
-                                + (SystemClock.uptimeMillis()-t) + "ms");
+                        sTrace.end(LoaderTrace.BIND_CHUNK, t);
+                        sTrace.mark(LoaderTrace.ALL_APPS_BOUND);
                     }
                 }
             };
-            boolean isRunningOnMainThread = !(sWorkerThread.getThreadId() == Process.myTid());
+            boolean isRunningOnMainThread = !sWorker.isCurrentThread();
             if (oldCallbacks.isAllAppsVisible() && isRunningOnMainThread) {
                 r.run();
             } else {
@@ -1388,9 +1960,128 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
-        private void loadAllAppsByBatch() {
-            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+        /**
+         * The apps of one batch, loaded off the loader thread. The label cache is the batch's
+         * own, HashMaps can't be shared across threads.
+         */
+        private class AppBatch {
+            final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>();
+            final ArrayList<LauncherActivityInfo> activities =
+                    new ArrayList<LauncherActivityInfo>();
+            final HashMap<Object, CharSequence> labelCache = new HashMap<Object, CharSequence>();
+        }
+
+        /**
+         * Lists the activities of every profile, in parallel on sLoaderPool. A profile that
+         * couldn't be listed is left out, its activities are then resolved one by one. The
+         * listings also give the icon cache the update times of the packages.
+         */
+        private ActivityIndex queryActivities() {
+            final long t = sTrace.begin(LoaderTrace.RESOLVE);
+            final List<UserHandle> profiles = mUserManager.getUserProfiles();
+            final ArrayList<Future<List<LauncherActivityInfo>>> queries =
+                    new ArrayList<Future<List<LauncherActivityInfo>>>(profiles.size());
+            for (final UserHandle user : profiles) {
+                queries.add(sLoaderPool.submit(new Callable<List<LauncherActivityInfo>>() {
+                    public List<LauncherActivityInfo> call() {
+                        return mIconCache.getActivityList(user);
+                    }
+                }));
+            }
+            final ActivityIndex activities = new ActivityIndex();
+            for (int i = 0; i < profiles.size(); i++) {
+                List<LauncherActivityInfo> list = await(queries.get(i));
+                if (list != null) {
+                    activities.put(profiles.get(i), list);
+                }
+            }
+            sTrace.end(LoaderTrace.RESOLVE, t);
+            return activities;
+        }
+
+        /**
+         * Enumerates and sorts the apps of "user", then queues the loading of their icons and
+         * labels in batches of "batchSize". Runs on sLoaderPool, returns the batches in order.
+         * The activities are taken from "activities" if the profile was listed there.
+         */
+        private Callable<List<Future<AppBatch>>> enumerateProfile(final UserHandle user,
+                final ActivityIndex activities) {
+            return new Callable<List<Future<AppBatch>>>() {
+                public List<Future<AppBatch>> call() {
+                    // Reuse the list of the workspace load, a copy since it gets sorted
+                    final List<LauncherActivityInfo> listed =
+                            activities != null ? activities.getActivities(user) : null;
+                    final List<LauncherActivityInfo> apps = listed != null
+                            ? new ArrayList<LauncherActivityInfo>(listed)
+                            : mIconCache.getActivityList(user);
+                    final int N = apps != null ? apps.size() : 0;
+                    final ArrayList<Future<AppBatch>> batches = new ArrayList<Future<AppBatch>>();
+                    if (N == 0) {
+                        return batches;
+                    }
+
+                    // Resolve every sort key first, so the sort itself only compares bytes and
+                    // never has to look up a label
+                    final long sortTime = sTrace.begin(LoaderTrace.SORT);
+                    final HashMap<Object, CharSequence> labelCache =
+                            new HashMap<Object, CharSequence>();
+                    ArrayList<byte[]> sortKeys = new ArrayList<byte[]>(N);
+                    for (int k = 0; k < N; k++) {
+                        sortKeys.add(mIconCache.getSortKey(apps.get(k), labelCache));
+                    }
+                    SortKeys.sort(apps, sortKeys);
+                    sTrace.end(LoaderTrace.SORT, sortTime);
+
+                    final int batchSize = mBatchSize == 0 ? N : mBatchSize;
+                    for (int i = 0; i < N; i += batchSize) {
+                        final List<LauncherActivityInfo> batch =
+                                apps.subList(i, Math.min(i + batchSize, N));
+                        batches.add(sLoaderPool.submit(new Callable<AppBatch>() {
+                            public AppBatch call() {
+                                final long t = sTrace.begin(LoaderTrace.ICON_RENDER);
+                                AppBatch result = new AppBatch();
+                                result.labelCache.putAll(labelCache);
+                                for (LauncherActivityInfo info : batch) {
+                                    // This builds the icon bitmaps.
+                                    result.apps.add(new ApplicationInfo(info, user, mIconCache,
+                                            result.labelCache, true));
+                                    result.activities.add(info);
+                                }
+                                sTrace.end(LoaderTrace.ICON_RENDER, t);
+                                return result;
+                            }
+                        }));
+                    }
+                    return batches;
+                }
+            };
+        }
+
+        /**
+         * Waits for "future". Returns null if it failed, or if the loader was stopped meanwhile.
+         */
+        private <T> T await(Future<T> future) {
+            while (!mStopped) {
+                try {
+                    return future.get(1, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    // Check mStopped again
+                } catch (InterruptedException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Unable to load apps", e.getCause());
+                    return null;
+                }
+            }
+            return null;
+        }
 
+        /**
+         * Loads all apps. Profiles are enumerated in parallel on sLoaderPool, and icons and
+         * labels are loaded there in batches; the batches are merged into mBgAllAppsList and
+         * bound in the order of the profiles and of the sorted apps, as if loaded one by one.
+         */
+        private void loadAllAppsByBatch() {
             // Don't use these two variables in any of the callback runnables.
             // Otherwise we hold a reference to them.
             final Callbacks oldCallbacks = mCallbacks.get();
@@ -1400,64 +2091,45 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
-            final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-            mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-
             final List<UserHandle> profiles = mUserManager.getUserProfiles();
 
             mBgAllAppsList.clear();
+            mLowResApps.clear();
+            mLowResActivities.clear();
             final int profileCount = profiles.size();
+            final ArrayList<Future<List<Future<AppBatch>>>> enumerations =
+                    new ArrayList<Future<List<Future<AppBatch>>>>(profileCount);
             for (int p = 0; p < profileCount; p++) {
-                UserHandle user = profiles.get(p);
-                List<LauncherActivityInfo> apps = null;
-                int N = Integer.MAX_VALUE;
-
-                int startIndex;
-                int i = 0;
-                int batchSize = -1;
-                while (i < N && !mStopped) {
-                    if (i == 0) {
-                        final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                        apps = mLauncherApps.getActivityList(null, user);
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "queryIntentActivities took "
-                                    + (SystemClock.uptimeMillis()-qiaTime) + "ms");
-                        }
-                        if (apps == null) {
-                            return;
-                        }
-                        N = apps.size();
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "queryIntentActivities got " + N + " apps");
-                        }
-                        if (N == 0) {
-                            // There are no apps?!?
-                            return;
-                        }
-                        if (mBatchSize == 0) {
-                            batchSize = N;
-                        } else {
-                            batchSize = mBatchSize;
-                        }
+                enumerations.add(sLoaderPool.submit(
+                        enumerateProfile(profiles.get(p), mActivities)));
+            }
 
-                        final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                        Collections.sort(apps,
-                                new ShortcutNameComparator(mLabelCache));
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "sort took "
-                                    + (SystemClock.uptimeMillis()-sortTime) + "ms");
-                        }
+            int count = 0;
+            for (int p = 0; p < profileCount && !mStopped; p++) {
+                List<Future<AppBatch>> batches = await(enumerations.get(p));
+                if (batches == null) {
+                    continue;
+                }
+                final int batchCount = batches.size();
+                for (int b = 0; b < batchCount; b++) {
+                    AppBatch batch = await(batches.get(b));
+                    if (mStopped) {
+                        cancelAll(enumerations, batches);
+                        return;
                     }
-
-                    final long t2 = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-
-                    startIndex = i;
-                    for (int j=0; i<N && j<batchSize; j++) {
-                        // This builds the icon bitmaps.
-                        mBgAllAppsList.add(new ApplicationInfo(apps.get(i), user,
-                                mIconCache, mLabelCache));
-                        i++;
+                    if (batch == null) {
+                        continue;
                     }
+                    for (int i = 0; i < batch.apps.size(); i++) {
+                        ApplicationInfo app = batch.apps.get(i);
+                        if (app.usingLowResIcon) {
+                            mLowResApps.add(app);
+                            mLowResActivities.add(batch.activities.get(i));
+                        }
+                        mBgAllAppsList.add(app);
+                    }
+                    mLabelCache.putAll(batch.labelCache);
+                    count += batch.apps.size();
 
                     final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     final ArrayList<ApplicationInfo> added = mBgAllAppsList.added;
@@ -1465,29 +2137,21 @@ public class LauncherModel extends BroadcastReceiver {
                     mBgAllAppsList.added = new ArrayList<ApplicationInfo>();
                     mHandler.post(new Runnable() {
                         public void run() {
-                            final long t = SystemClock.uptimeMillis();
                             if (callbacks != null) {
+                                final long t = sTrace.begin(LoaderTrace.BIND_CHUNK);
                                 if (firstProfile) {
                                     callbacks.bindAllApplications(added);
                                 } else {
                                     callbacks.bindAppsAdded(added);
                                 }
-                                if (DEBUG_LOADERS) {
-                                    Log.d(TAG, "bound " + added.size() + " apps in "
-                                        + (SystemClock.uptimeMillis() - t) + "ms");
-                                }
+                                sTrace.end(LoaderTrace.BIND_CHUNK, t);
                             } else {
                                 Log.i(TAG, "not binding apps: no Launcher activity");
                             }
                         }
                     });
 
-                    if (DEBUG_LOADERS) {
-                        Log.d(TAG, "batch of " + (i-startIndex) + " icons processed in "
-                                + (SystemClock.uptimeMillis()-t2) + "ms");
-                    }
-
-                    if (mAllAppsLoadDelay > 0 && i < N) {
+                    if (mAllAppsLoadDelay > 0 && b < batchCount - 1) {
                         try {
                             if (DEBUG_LOADERS) {
                                 Log.d(TAG, "sleeping for " + mAllAppsLoadDelay + "ms");
@@ -1496,11 +2160,45 @@ public class LauncherModel extends BroadcastReceiver {
                         } catch (InterruptedException exc) { }
                     }
                 }
+            }
+            if (mStopped) {
+                cancelAll(enumerations, null);
+                return;
+            }
 
-                if (DEBUG_LOADERS) {
-                    Log.d(TAG, "cached all " + N + " apps in "
-                            + (SystemClock.uptimeMillis()-t) + "ms"
-                            + (mAllAppsLoadDelay > 0 ? " (including delay)" : ""));
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "cached all " + count + " apps");
+            }
+            final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (callbacks != null) {
+                        sTrace.mark(LoaderTrace.ALL_APPS_BOUND);
+                    }
+                }
+            });
+        }
+
+        private void cancelAll(List<Future<List<Future<AppBatch>>>> enumerations,
+                List<Future<AppBatch>> batches) {
+            // Batches queued by an enumeration that is still running are left to finish
+            for (Future<List<Future<AppBatch>>> enumeration : enumerations) {
+                enumeration.cancel(false);
+                if (enumeration.isDone() && !enumeration.isCancelled()) {
+                    try {
+                        for (Future<AppBatch> batch : enumeration.get()) {
+                            batch.cancel(false);
+                        }
+                    } catch (InterruptedException e) {
+                        // Can't happen, it's done
+                    } catch (ExecutionException e) {
+                        // Nothing was queued
+                    }
+                }
+            }
+            if (batches != null) {
+                for (Future<AppBatch> batch : batches) {
+                    batch.cancel(false);
                 }
             }
         }
@@ -1516,130 +2214,536 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
-    void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
-    }
-
-    private class PackageUpdatedTask implements Runnable {
-        int mOp;
-        String[] mPackages;
-        UserHandle mUser;
-
-        public static final int OP_NONE = 0;
-        public static final int OP_ADD = 1;
-        public static final int OP_UPDATE = 2;
-        public static final int OP_REMOVE = 3; // uninstlled
-        public static final int OP_UNAVAILABLE = 4; // external media unmounted
-
-        public PackageUpdatedTask(int op, String[] packages, UserHandle user) {
-            mOp = op;
-            mPackages = packages;
-            mUser = user;
-        }
-
+    /**
+     * Reloads the labels of everything loaded in the new locale, in one pass on the worker
+     * thread, and re-sorts all apps. Icons are left alone.
+     */
+    private class RelabelTask implements Runnable {
         public void run() {
-            final Context context = mApp;
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            mIconCache.updateLocale();
+            // Its sort keys are for the old locale
+            mWidgetCatalog.invalidate();
 
-            final String[] packages = mPackages;
-            final int N = packages.length;
-            switch (mOp) {
-                case OP_ADD:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packages[i]);
-                        mBgAllAppsList.addPackage(context, packages[i], mUser);
-                    }
-                    break;
-                case OP_UPDATE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
-                        mBgAllAppsList.updatePackage(context, packages[i], mUser);
-                        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-                        WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packages[i]);
+            // One query per profile instead of resolving every item on its own
+            final ActivityIndex activities = new ActivityIndex();
+            final List<UserHandle> profiles = mUserManager.getUserProfiles();
+            for (UserHandle user : profiles) {
+                activities.put(user, mIconCache.getActivityList(user));
+            }
+
+            final ArrayList<ShortcutInfo> shortcuts = new ArrayList<ShortcutInfo>();
+            synchronized (sBgLock) {
+                for (ItemInfo item : sBgWorkspaceItems) {
+                    if (!(item instanceof ShortcutInfo)
+                            || item.itemType != LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION) {
+                        continue;
                     }
-                    break;
-                case OP_REMOVE:
-                case OP_UNAVAILABLE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packages[i]);
-                        mBgAllAppsList.removePackage(packages[i], mUser);
-                        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-                        WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packages[i]);
+                    ShortcutInfo shortcut = (ShortcutInfo) item;
+                    LauncherActivityInfo info = activities.get(
+                            shortcut.intent.getComponent(), shortcut.user);
+                    if (info != null) {
+                        mIconCache.relabel(shortcut, info);
+                        shortcuts.add(shortcut);
                     }
-                    break;
+                }
             }
 
-            ArrayList<ApplicationInfo> added = null;
-            ArrayList<ApplicationInfo> modified = null;
-            final ArrayList<ApplicationInfo> removedApps = new ArrayList<ApplicationInfo>();
-
-            if (mBgAllAppsList.added.size() > 0) {
-                added = new ArrayList<ApplicationInfo>(mBgAllAppsList.added);
-                mBgAllAppsList.added.clear();
-            }
-            if (mBgAllAppsList.modified.size() > 0) {
-                modified = new ArrayList<ApplicationInfo>(mBgAllAppsList.modified);
-                mBgAllAppsList.modified.clear();
-            }
-            if (mBgAllAppsList.removed.size() > 0) {
-                removedApps.addAll(mBgAllAppsList.removed);
-                mBgAllAppsList.removed.clear();
+            // Keep the order of loadAllAppsByBatch(): by profile, then by label
+            final ArrayList<ApplicationInfo> apps = mBgAllAppsList.data;
+            final ArrayList<byte[]> sortKeys = new ArrayList<byte[]>(apps.size());
+            for (ApplicationInfo app : apps) {
+                LauncherActivityInfo info = activities.get(app.componentName, app.user);
+                if (info != null) {
+                    sortKeys.add(mIconCache.relabel(app, info));
+                } else {
+                    // Gone, a package update is going to remove it
+                    sortKeys.add(SortKeys.forLabel(app.title.toString()));
+                }
             }
+            SortKeys.sort(apps, sortKeys);
+            Collections.sort(apps, new Comparator<ApplicationInfo>() {
+                @Override
+                public int compare(ApplicationInfo lhs, ApplicationInfo rhs) {
+                    return profiles.indexOf(lhs.user) - profiles.indexOf(rhs.user);
+                }
+            });
 
+            @SuppressWarnings("unchecked")
+            final ArrayList<ApplicationInfo> sortedApps =
+                    (ArrayList<ApplicationInfo>) apps.clone();
             final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
-            if (callbacks == null) {
-                Log.w(TAG, "Nobody to tell about the new app.  Launcher is probably loading.");
-                return;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
+                    if (callbacks == cb && cb != null) {
+                        callbacks.bindTitlesUpdated(shortcuts, sortedApps);
+                    }
+                }
+            });
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "relabeled " + shortcuts.size() + " shortcuts and " + apps.size()
+                        + " apps in " + (SystemClock.uptimeMillis() - t) + "ms");
             }
+        }
+    }
+
+    /** Returns an empty grid of the cells of a screen, see {@link #checkItemPlacement}. */
+    private static OccupancyGrid newScreenGrid() {
+        return new OccupancyGrid(mCellCountX + 1, mCellCountY + 1);
+    }
+
+    // check & update map of what's occupied; used to discard overlapping/invalid items
+    private static boolean checkItemPlacement(OccupancyGrid occupied[], ItemInfo item) {
+        int containerIndex = item.screen;
+        if (containerIndex < 0 || containerIndex >= occupied.length) {
+            Log.e(TAG, "Error loading shortcut " + item + " into screen " + containerIndex);
+            return false;
+        }
+        OccupancyGrid grid = occupied[containerIndex];
+        if (grid == null) {
+            grid = newScreenGrid();
+            occupied[containerIndex] = grid;
+        }
+        if (!grid.contains(item.cellX, item.cellY, item.spanX, item.spanY)) {
+            Log.e(TAG, "Error loading shortcut " + item + " outside of the workspace");
+            return false;
+        }
+
+        // Check if any workspace icons overlap with each other
+        int cell = grid.findOccupied(item.cellX, item.cellY, item.spanX, item.spanY);
+        if (cell >= 0) {
+            int x = cell % grid.getCountX();
+            int y = cell / grid.getCountX();
+            Log.e(TAG, "Error loading shortcut " + item
+                + " into cell (" + containerIndex + "-" + item.screen + ":"
+                + x + "," + y
+                + ") occupied by "
+                + sBgWorkspaceIndex.getItemAt(containerIndex, x, y));
+            return false;
+        }
+        grid.set(item.cellX, item.cellY, item.spanX, item.spanY, true);
 
-            if (added != null) {
-                final ArrayList<ApplicationInfo> addedFinal = added;
+        return true;
+    }
+
+    /**
+     * Applies the rows of the shortcuts table that changed since the workspace was loaded to
+     * the model, and rebinds the items that are different. Falls back to a full reload if
+     * the changes are no longer known.
+     */
+    private class WorkspaceDiffTask implements Runnable {
+        public void run() {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final Context context = mApp;
+            flushDatabaseWrites(context);
+            final RowChangeLog.Delta delta =
+                    mApp.getLauncherProvider().getChangeLog().getChangesSince(mWorkspaceSequence);
+            if (delta == null) {
                 mHandler.post(new Runnable() {
                     public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsAdded(addedFinal);
-                        }
+                        resetLoadedState(false, true);
+                        startLoaderFromBackground();
                     }
                 });
+                return;
             }
-            if (modified != null) {
-                final ArrayList<ApplicationInfo> modifiedFinal = modified;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsUpdated(modifiedFinal);
+            if (delta.isEmpty()) {
+                return;
+            }
+
+            // Removed rows and rows that don't resolve any more are taken out of the model
+            final LongObjectMap<ShortcutInfo> loaded =
+                    new LongObjectMap<ShortcutInfo>(delta.changed.size());
+            if (!delta.changed.isEmpty()) {
+                final PackageManager manager = context.getPackageManager();
+                final HashMap<Object, CharSequence> labelCache =
+                        new HashMap<Object, CharSequence>();
+                final Cursor c = context.getContentResolver().query(
+                        LauncherSettings.Shortcuts.CONTENT_URI, null,
+                        LauncherSettings.Shortcuts._ID + " IN ("
+                                + TextUtils.join(",", delta.changed) + ")", null, null);
+                try {
+                    final ShortcutColumns columns = new ShortcutColumns(c);
+                    while (c.moveToNext()) {
+                        final long id = c.getLong(columns.id);
+                        UserHandle user = getUser(c, columns);
+                        if (user == null) {
+                            // The user doesn't exist anymore, as in loadWorkspace()
+                            deleteDeadRow(context, id);
+                            continue;
+                        }
+                        Intent intent = getIntent(c, columns);
+                        if (intent == null) {
+                            continue;
+                        }
+                        ShortcutInfo info = loadShortcut(context, manager, c, columns, intent,
+                                user, labelCache, false, null);
+                        if (info != null) {
+                            loaded.put(info.id, info);
+                        } else {
+                            // The activity doesn't resolve, as in loadWorkspace()
+                            Log.e(TAG, "Error loading shortcut " + id + ", removing it");
+                            deleteDeadRow(context, id);
                         }
                     }
-                });
+                } finally {
+                    c.close();
+                }
             }
-            // If a package has been removed, or an app has been removed as a result of
-            // an update (for example), make the removed callback.
-            if (mOp == OP_REMOVE || !removedApps.isEmpty()) {
-                final boolean permanent = (mOp == OP_REMOVE);
-                final ArrayList<String> removedPackageNames =
-                        new ArrayList<String>(Arrays.asList(packages));
 
+            final ArrayList<ItemInfo> removed = new ArrayList<ItemInfo>();
+            final ArrayList<ItemInfo> added = new ArrayList<ItemInfo>();
+            synchronized (sBgLock) {
+                // By id, as loadWorkspace() reads them, so that the same row wins an overlap
+                final TreeSet<Long> ids = new TreeSet<Long>(delta.removed);
+                ids.addAll(delta.changed);
+                final ArrayList<ShortcutInfo> toAdd = new ArrayList<ShortcutInfo>();
+                for (Long id : ids) {
+                    final ItemInfo old = sBgItemsIdMap.get(id);
+                    final ShortcutInfo info = loaded.get(id);
+                    if (old != null && info != null && isSameItem(old, info)) {
+                        // Typically our own writes, which are already in the model
+                        continue;
+                    }
+                    if (old != null) {
+                        sBgItemsIdMap.remove(id);
+                        sBgWorkspaceItems.remove(old);
+                        sBgWorkspaceIndex.remove(old);
+                        sBgDbIconCache.remove(old);
+                        updateIconPinLocked(mIconCache, old, false);
+                        removed.add(old);
+                    }
+                    if (info != null) {
+                        toAdd.add(info);
+                    }
+                }
+
+                // Placed against what is left on their screens, like loadWorkspace() does
+                final OccupancyGrid[] occupied = new OccupancyGrid[Launcher.SCREEN_COUNT + 1];
+                for (ShortcutInfo info : toAdd) {
+                    fillScreenGridLocked(occupied, info.screen);
+                    if (!checkItemPlacement(occupied, info)) {
+                        continue;
+                    }
+                    sBgItemsIdMap.put(info.id, info);
+                    sBgWorkspaceItems.add(info);
+                    sBgWorkspaceIndex.put(info);
+                    updateIconPinLocked(mIconCache, info, true);
+                    added.add(info);
+                }
+            }
+            mWorkspaceSequence = delta.sequence;
+
+            if (!removed.isEmpty() || !added.isEmpty()) {
+                writeWorkspaceSnapshot();
+                final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
                 mHandler.post(new Runnable() {
                     public void run() {
                         Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
                         if (callbacks == cb && cb != null) {
-                            callbacks.bindComponentsRemoved(removedPackageNames,
-                                    removedApps, permanent, mUser);
+                            callbacks.bindItemsChanged(removed, added);
                         }
                     }
                 });
             }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "applied " + delta.changed.size() + " changed and "
+                        + delta.removed.size() + " removed rows in "
+                        + (SystemClock.uptimeMillis() - t) + "ms, rebinding "
+                        + removed.size() + " removed and " + added.size() + " added items");
+            }
+        }
+
+        /**
+         * Marks the cells taken by the items of the model on "screen" in "occupied", unless
+         * that was already done.
+         */
+        private void fillScreenGridLocked(OccupancyGrid[] occupied, int screen) {
+            if (screen < 0 || screen >= occupied.length || occupied[screen] != null) {
+                return;
+            }
+            final OccupancyGrid grid = newScreenGrid();
+            final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+            sBgWorkspaceIndex.getScreen(screen, items);
+            for (ItemInfo item : items) {
+                grid.set(item.cellX, item.cellY, item.spanX, item.spanY, true);
+            }
+            occupied[screen] = grid;
+        }
+
+        /** Deletes a row that can't be loaded, without notifying the observers. */
+        private void deleteDeadRow(Context context, long id) {
+            context.getContentResolver().delete(
+                    LauncherSettings.Shortcuts.getContentUri(id, false), null, null);
+        }
+
+        /** Returns whether "info" would be shown exactly like "old". */
+        private boolean isSameItem(ItemInfo old, ShortcutInfo info) {
+            if (!(old instanceof ShortcutInfo)) {
+                return false;
+            }
+            ShortcutInfo shortcut = (ShortcutInfo) old;
+            return shortcut.itemType == info.itemType
+                    && shortcut.screen == info.screen
+                    && shortcut.cellX == info.cellX
+                    && shortcut.cellY == info.cellY
+                    && shortcut.spanX == info.spanX
+                    && shortcut.spanY == info.spanY
+                    && shortcut.user.equals(info.user)
+                    && TextUtils.equals(shortcut.title, info.title)
+                    && shortcut.intent.filterEquals(info.intent)
+                    && shortcut.customIcon == info.customIcon;
+        }
+    }
+
+    private AtomicFile getWorkspaceSnapshotFile() {
+        return new AtomicFile(new File(mApp.getFilesDir(), WORKSPACE_SNAPSHOT));
+    }
+
+    /**
+     * Saves the workspace as it is in the model, in the background, for the next cold start.
+     */
+    void saveWorkspaceSnapshot() {
+        sWorker.post(LANE_MAINTENANCE, new Runnable() {
+            public void run() {
+                writeWorkspaceSnapshot();
+            }
+        });
+    }
+
+    private void writeWorkspaceSnapshot() {
+        if (!mWorkspaceLoaded) {
+            // Don't save a partial workspace, the previous snapshot is as good as it gets
+            return;
+        }
+        final ArrayList<WorkspaceSnapshot.Entry> entries = new ArrayList<WorkspaceSnapshot.Entry>();
+        synchronized (sBgLock) {
+            for (ItemInfo item : sBgWorkspaceItems) {
+                if (!(item instanceof ShortcutInfo)) {
+                    continue;
+                }
+                ShortcutInfo info = (ShortcutInfo) item;
+                WorkspaceSnapshot.Entry entry = new WorkspaceSnapshot.Entry();
+                entry.id = info.id;
+                entry.itemType = info.itemType;
+                entry.screen = info.screen;
+                entry.cellX = info.cellX;
+                entry.cellY = info.cellY;
+                entry.spanX = info.spanX;
+                entry.spanY = info.spanY;
+                entry.profileSerial = mUserManager.getSerialNumberForUser(info.user);
+                entry.title = info.title != null ? info.title.toString() : null;
+                entry.intent = info.intent.toUri(0);
+                entries.add(entry);
+            }
+        }
+
+        final AtomicFile file = getWorkspaceSnapshotFile();
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(WorkspaceSnapshot.encode(entries));
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the workspace snapshot", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Queues a package event. Events that come within {@link #PACKAGE_EVENT_DELAY_MS} of the
+     * first pending one are merged per package and user and handled by one
+     * {@link PackageUpdatedTask}, so a store updating many apps at once rebuilds the widget
+     * list and binds once instead of once per app.
+     */
+    void enqueuePackageUpdated(int op, String[] packages, UserHandle user) {
+        synchronized (mLock) {
+            // The activities it listed may be gone
+            mLoadCheckpoint = null;
+        }
+        synchronized (mPendingPackageOps) {
+            if (mPendingPackageOps.isEmpty()) {
+                mPackageEventTimer.postDelayed(mSchedulePackageEvents, PACKAGE_EVENT_DELAY_MS);
+            }
+            LinkedHashMap<String, Integer> ops = mPendingPackageOps.get(user);
+            if (ops == null) {
+                ops = new LinkedHashMap<String, Integer>();
+                mPendingPackageOps.put(user, ops);
+            }
+            for (String packageName : packages) {
+                Integer previous = ops.get(packageName);
+                ops.put(packageName, previous == null ? op : mergePackageOps(previous, op));
+            }
+        }
+    }
+
+    /**
+     * Returns the op with the same outcome as "previous" followed by "op", both not
+     * handled yet.
+     */
+    private static int mergePackageOps(int previous, int op) {
+        if (op == PackageUpdatedTask.OP_ADD && (previous == PackageUpdatedTask.OP_REMOVE
+                || previous == PackageUpdatedTask.OP_UNAVAILABLE)) {
+            // Back before it was seen gone, but the activities may have changed
+            return PackageUpdatedTask.OP_UPDATE;
+        }
+        if (op == PackageUpdatedTask.OP_UPDATE && previous == PackageUpdatedTask.OP_ADD) {
+            // Not in the list yet, adding it reads the updated activities anyway
+            return PackageUpdatedTask.OP_ADD;
+        }
+        return op;
+    }
+
+    /**
+     * Applies the package events pending when it runs, see {@link #enqueuePackageUpdated}.
+     */
+    private class PackageUpdatedTask implements Runnable {
+        public static final int OP_NONE = 0;
+        public static final int OP_ADD = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_REMOVE = 3; // uninstlled
+        public static final int OP_UNAVAILABLE = 4; // external media unmounted
+
+        public void run() {
+            final LinkedHashMap<UserHandle, LinkedHashMap<String, Integer>> pending;
+            synchronized (mPendingPackageOps) {
+                mPackageEventTimer.removeCallbacks(mSchedulePackageEvents);
+                pending = new LinkedHashMap<UserHandle, LinkedHashMap<String, Integer>>(
+                        mPendingPackageOps);
+                mPendingPackageOps.clear();
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            final Context context = mApp;
+            final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
+            final ArrayList<ApplicationInfo> added = new ArrayList<ApplicationInfo>();
+            final ArrayList<ApplicationInfo> modified = new ArrayList<ApplicationInfo>();
+            final ArrayList<Runnable> removedBinds = new ArrayList<Runnable>();
+            final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+
+            for (Map.Entry<UserHandle, LinkedHashMap<String, Integer>> entry
+                    : pending.entrySet()) {
+                final UserHandle user = entry.getKey();
+                final ArrayList<String> removedPackages = new ArrayList<String>();
+                final ArrayList<String> otherPackages = new ArrayList<String>();
+                for (Map.Entry<String, Integer> op : entry.getValue().entrySet()) {
+                    if (op.getValue() == OP_REMOVE) {
+                        removedPackages.add(op.getKey());
+                    } else {
+                        otherPackages.add(op.getKey());
+                    }
+                }
+
+                // Uninstalled packages first, so that their apps can be told apart from the
+                // ones that are only gone for now
+                for (String packageName : removedPackages) {
+                    if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packageName);
+                    mBgAllAppsList.removePackage(packageName, user);
+                    WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packageName);
+                }
+                final ArrayList<ApplicationInfo> uninstalledApps =
+                        new ArrayList<ApplicationInfo>(mBgAllAppsList.removed);
+                mBgAllAppsList.removed.clear();
+
+                for (String packageName : otherPackages) {
+                    switch (entry.getValue().get(packageName)) {
+                        case OP_ADD:
+                            if (DEBUG_LOADERS) {
+                                Log.d(TAG, "mAllAppsList.addPackage " + packageName);
+                            }
+                            mBgAllAppsList.addPackage(context, packageName, user);
+                            break;
+                        case OP_UPDATE:
+                            if (DEBUG_LOADERS) {
+                                Log.d(TAG, "mAllAppsList.updatePackage " + packageName);
+                            }
+                            mBgAllAppsList.updatePackage(context, packageName, user);
+                            WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(),
+                                    packageName);
+                            break;
+                        case OP_UNAVAILABLE:
+                            if (DEBUG_LOADERS) {
+                                Log.d(TAG, "mAllAppsList.removePackage " + packageName);
+                            }
+                            mBgAllAppsList.removePackage(packageName, user);
+                            WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(),
+                                    packageName);
+                            break;
+                    }
+                }
+                final ArrayList<ApplicationInfo> removedApps =
+                        new ArrayList<ApplicationInfo>(mBgAllAppsList.removed);
+                mBgAllAppsList.removed.clear();
+
+                // If a package has been removed, or an app has been removed as a result of
+                // an update (for example), make the removed callback.
+                if (!removedPackages.isEmpty()) {
+                    removedBinds.add(new Runnable() {
+                        public void run() {
+                            callbacks.bindComponentsRemoved(removedPackages, uninstalledApps, true,
+                                    user);
+                        }
+                    });
+                }
+                if (!removedApps.isEmpty()) {
+                    removedBinds.add(new Runnable() {
+                        public void run() {
+                            callbacks.bindComponentsRemoved(otherPackages, removedApps, false,
+                                    user);
+                        }
+                    });
+                }
+            }
+            added.addAll(mBgAllAppsList.added);
+            mBgAllAppsList.added.clear();
+            modified.addAll(mBgAllAppsList.modified);
+            mBgAllAppsList.modified.clear();
+
+            if (callbacks == null) {
+                Log.w(TAG, "Nobody to tell about the new app.  Launcher is probably loading.");
+                return;
+            }
 
-            final ArrayList<Object> widgetsAndShortcuts =
-                    getSortedWidgetsAndShortcuts(context);
+            // A launcher that wasn't given the widgets yet gets all of them, the one that was
+            // only the changed packages
+            final ArrayList<String> changedPackages;
+            final ArrayList<Object> widgetsAndShortcuts;
+            final Callbacks widgetsBoundTo =
+                    mWidgetsBoundTo != null ? mWidgetsBoundTo.get() : null;
+            if (mWidgetCatalog.isLoaded() && widgetsBoundTo == callbacks) {
+                final HashSet<String> packages = new HashSet<String>();
+                for (LinkedHashMap<String, Integer> ops : pending.values()) {
+                    packages.addAll(ops.keySet());
+                }
+                changedPackages = new ArrayList<String>(packages);
+                widgetsAndShortcuts = mWidgetCatalog.update(changedPackages);
+            } else {
+                changedPackages = null;
+                widgetsAndShortcuts = mWidgetCatalog.load();
+                mWidgetsBoundTo = new WeakReference<Callbacks>(callbacks);
+            }
+            // One pass for the whole batch
             mHandler.post(new Runnable() {
-                @Override
                 public void run() {
                     Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                    if (callbacks == cb && cb != null) {
-                        callbacks.bindPackagesUpdated(widgetsAndShortcuts);
+                    if (callbacks != cb || cb == null) {
+                        return;
+                    }
+                    if (!added.isEmpty()) {
+                        callbacks.bindAppsAdded(added);
+                    }
+                    if (!modified.isEmpty()) {
+                        callbacks.bindAppsUpdated(modified);
                     }
+                    for (Runnable r : removedBinds) {
+                        r.run();
+                    }
+                    callbacks.bindPackagesUpdated(changedPackages, widgetsAndShortcuts);
                 }
             });
         }
@@ -1647,34 +2751,64 @@ public class LauncherModel extends BroadcastReceiver {
 
     // Returns a list of ResolveInfos/AppWindowInfos in sorted order
     public static ArrayList<Object> getSortedWidgetsAndShortcuts(Context context) {
-        ArrayList<Object> widgetsAndShortcuts = new ArrayList<Object>();
-
-        // Get all user profiles.
-        AppWidgetManager widgetManager = (AppWidgetManager) context.getSystemService(
-                Context.APPWIDGET_SERVICE);
-        UserManager userManager = (UserManager) context.getSystemService(
-                Context.USER_SERVICE);
+        return new WidgetCatalog(new WidgetSource(context)).load();
+    }
 
-        List<UserHandle> profiles = userManager.getUserProfiles();
+    /** The widget providers of all profiles and the shortcuts of the user. */
+    private static class WidgetSource implements WidgetCatalog.Source {
+        private final Context mContext;
+        private final PackageManager mPackageManager;
 
-        // Add the widgets for the managed profiles next.
-        final int profileCount = profiles.size();
-        for (int i = 0; i < profileCount; i++) {
-            UserHandle profile = profiles.get(i);
-            // Add the widget providers for the profile.
-            List<AppWidgetProviderInfo> providers = widgetManager
-                    .getInstalledProvidersForProfile(profile);
-            widgetsAndShortcuts.addAll(providers);
+        WidgetSource(Context context) {
+            mContext = context;
+            mPackageManager = context.getPackageManager();
         }
 
-        // Add all shortcuts for the user.
-        PackageManager packageManager = context.getPackageManager();
-        Intent shortcutsIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
-        widgetsAndShortcuts.addAll(packageManager.queryIntentActivities(shortcutsIntent, 0));
+        @Override
+        public List<Object> load(Set<String> packages) {
+            ArrayList<Object> widgetsAndShortcuts = new ArrayList<Object>();
+
+            // Get all user profiles.
+            AppWidgetManager widgetManager = (AppWidgetManager) mContext.getSystemService(
+                    Context.APPWIDGET_SERVICE);
+            UserManager userManager = (UserManager) mContext.getSystemService(
+                    Context.USER_SERVICE);
+
+            // Add the widget providers for each profile. There is no query for a package
+            // before O, so they are filtered here, one query per profile however many
+            // packages changed.
+            for (UserHandle profile : userManager.getUserProfiles()) {
+                for (AppWidgetProviderInfo provider
+                        : widgetManager.getInstalledProvidersForProfile(profile)) {
+                    if (packages == null || packages.contains(getPackageName(provider))) {
+                        widgetsAndShortcuts.add(provider);
+                    }
+                }
+            }
+
+            // Add all shortcuts for the user.
+            Intent shortcutsIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
+            for (ResolveInfo shortcut : mPackageManager.queryIntentActivities(shortcutsIntent, 0)) {
+                if (packages == null || packages.contains(getPackageName(shortcut))) {
+                    widgetsAndShortcuts.add(shortcut);
+                }
+            }
+            return widgetsAndShortcuts;
+        }
 
-        Collections.sort(widgetsAndShortcuts, new WidgetAndShortcutNameComparator(packageManager));
+        @Override
+        public String getPackageName(Object item) {
+            return (item instanceof AppWidgetProviderInfo)
+                    ? ((AppWidgetProviderInfo) item).provider.getPackageName()
+                    : ((ResolveInfo) item).activityInfo.packageName;
+        }
 
-        return widgetsAndShortcuts;
+        @Override
+        public String getLabel(Object item) {
+            return (item instanceof AppWidgetProviderInfo)
+                    ? ((AppWidgetProviderInfo) item).loadLabel(mPackageManager)
+                    : ((ResolveInfo) item).loadLabel(mPackageManager).toString();
+        }
     }
 
     /**
@@ -1694,6 +2828,35 @@ public class LauncherModel extends BroadcastReceiver {
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, UserHandle user,
             Context context,
             Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache) {
+        return getShortcutInfo(manager, intent, user, context, c, iconIndex, titleIndex,
+                labelCache, false, null);
+    }
+
+    /**
+     * Resolves the activity of "intent", from "activities" if it is given and knows the
+     * profile, which saves a binder call.
+     */
+    private LauncherActivityInfo resolveActivity(Intent intent, UserHandle user,
+            ActivityIndex activities) {
+        if (activities != null && activities.contains(user)) {
+            LauncherActivityInfo lai = activities.get(intent.getComponent(), user);
+            if (lai != null) {
+                return lai;
+            }
+            // Not a launcher activity, ask the package manager to be sure
+        }
+        return mLauncherApps.resolveActivity(intent, user);
+    }
+
+    /**
+     * Make an ShortcutInfo object for a shortcut that is an application. With useLowResIcon,
+     * the icon may be a low res placeholder, see {@link ItemInfo#usingLowResIcon}. The
+     * activity is looked up in "activities" if it is given and knows the profile.
+     */
+    ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, UserHandle user,
+            Context context, Cursor c, int iconIndex, int titleIndex,
+            HashMap<Object, CharSequence> labelCache, boolean useLowResIcon,
+            ActivityIndex activities) {
         Bitmap icon = null;
         final ShortcutInfo info = new ShortcutInfo();
         info.user = user;
@@ -1703,12 +2866,14 @@ public class LauncherModel extends BroadcastReceiver {
             return null;
         }
 
-        LauncherActivityInfo lai = mLauncherApps.resolveActivity(intent, user);
+        LauncherActivityInfo lai = resolveActivity(intent, user, activities);
         if (lai == null) {
             return null;
         }
 
-        icon = mIconCache.getIcon(componentName, lai, labelCache);
+        // the icon cache, which also fills in the title
+        mIconCache.getTitleAndIcon(info, componentName, lai, labelCache, useLowResIcon);
+        icon = info.getIcon(mIconCache);
         // the db
         if (icon == null) {
             if (c != null) {
@@ -1722,16 +2887,6 @@ public class LauncherModel extends BroadcastReceiver {
         }
         info.setIcon(icon);
 
-        // from the resource
-        ComponentName key = lai.getComponentName();
-        if (labelCache != null && labelCache.containsKey(key)) {
-            info.title = labelCache.get(key);
-        } else {
-            info.title = lai.getLabel();
-            if (labelCache != null) {
-                labelCache.put(key, info.title);
-            }
-        }
         // from the db
         if (info.title == null) {
             if (c != null) {
@@ -1753,11 +2908,17 @@ public class LauncherModel extends BroadcastReceiver {
      */
     static ArrayList<ItemInfo> getWorkspaceShortcutItemInfosWithIntent(Intent intent) {
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        final ComponentName component = intent.getComponent();
+        final String uri = intent.toUri(0);
         synchronized (sBgLock) {
             for (ItemInfo info : sBgWorkspaceItems) {
                 if (info instanceof ShortcutInfo) {
                     ShortcutInfo shortcut = (ShortcutInfo) info;
-                    if (shortcut.intent.toUri(0).equals(intent.toUri(0))) {
+                    // Only build the URI of the items that can match
+                    ComponentName shortcutComponent = shortcut.intent.getComponent();
+                    if ((component == null ? shortcutComponent == null
+                            : component.equals(shortcutComponent))
+                            && shortcut.intent.toUri(0).equals(uri)) {
                         items.add(shortcut);
                     }
                 }
@@ -1933,8 +3094,8 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
-    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+    boolean queueIconToBeChecked(HashMap<Object, Long> cache, ShortcutInfo info, Cursor c,
+            int iconHashIndex) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnRemoveableStorage) {
             return false;
@@ -1946,22 +3107,23 @@ public class LauncherModel extends BroadcastReceiver {
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
         if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+            // Only the hash, the icon itself is never decoded to compare it
+            cache.put(info, c.isNull(iconHashIndex) ? null : c.getLong(iconHashIndex));
             return true;
         }
         return false;
     }
-    void updateSavedIcon(Context context, ShortcutInfo info, byte[] data) {
-        boolean needSave = false;
-        try {
-            if (data != null) {
-                Bitmap saved = BitmapFactory.decodeByteArray(data, 0, data.length);
-                Bitmap loaded = info.getIcon(mIconCache);
-                needSave = !saved.sameAs(loaded);
-            } else {
-                needSave = true;
-            }
-        } catch (Exception e) {
+    void updateSavedIcon(Context context, ShortcutInfo info, Long savedHash) {
+        if (info.usingLowResIcon) {
+            // The loader was stopped before upgrading this icon, don't save the placeholder
+            return;
+        }
+        boolean needSave;
+        if (savedHash != null) {
+            Bitmap loaded = info.getIcon(mIconCache);
+            needSave = loaded == null || BitmapInterner.hashPixels(loaded) != savedHash;
+        } else {
+            // No icon, or saved before icons had a hash
             needSave = true;
         }
         if (needSave) {
@@ -2012,89 +3174,21 @@ public class LauncherModel extends BroadcastReceiver {
             return new ComponentName(info.serviceInfo.packageName, info.serviceInfo.name);
         }
     }
-    public static class ShortcutNameComparator implements Comparator<LauncherActivityInfo> {
-        private Collator mCollator;
-        private HashMap<Object, CharSequence> mLabelCache;
-
-        ShortcutNameComparator() {
-            mLabelCache = new HashMap<Object, CharSequence>();
-            mCollator = Collator.getInstance();
-        }
-
-        ShortcutNameComparator(HashMap<Object, CharSequence> labelCache) {
-            mLabelCache = labelCache;
-            mCollator = Collator.getInstance();
-        }
-
-        @Override
-        public final int compare(LauncherActivityInfo a, LauncherActivityInfo b) {
-            CharSequence labelA, labelB;
-            ComponentName keyA = a.getComponentName();
-            ComponentName keyB = b.getComponentName();
-            if (mLabelCache.containsKey(keyA)) {
-                labelA = mLabelCache.get(keyA);
-            } else {
-                labelA = a.getLabel().toString();
-
-                mLabelCache.put(keyA, labelA);
-            }
-            if (mLabelCache.containsKey(keyB)) {
-                labelB = mLabelCache.get(keyB);
-            } else {
-                labelB = b.getLabel().toString();
-
-                mLabelCache.put(keyB, labelB);
-            }
-            return mCollator.compare(labelA, labelB);
-        }
-    };
-
-    public static class WidgetAndShortcutNameComparator implements Comparator<Object> {
-        private Collator mCollator;
-        private PackageManager mPackageManager;
-        private HashMap<Object, String> mLabelCache;
-
-        WidgetAndShortcutNameComparator(PackageManager pm) {
-            mPackageManager = pm;
-            mLabelCache = new HashMap<Object, String>();
-            mCollator = Collator.getInstance();
-        }
-        public final int compare(Object a, Object b) {
-            String labelA, labelB;
-            if (mLabelCache.containsKey(a)) {
-                labelA = mLabelCache.get(a);
-            } else {
-                labelA = (a instanceof AppWidgetProviderInfo) ?
-                    ((AppWidgetProviderInfo) a).loadLabel(mPackageManager) :
-                    ((ResolveInfo) a).loadLabel(mPackageManager).toString();
-                mLabelCache.put(a, labelA);
-            }
-            if (mLabelCache.containsKey(b)) {
-                labelB = mLabelCache.get(b);
-            } else {
-                labelB = (b instanceof AppWidgetProviderInfo) ?
-                    ((AppWidgetProviderInfo) b).loadLabel(mPackageManager) :
-                    ((ResolveInfo) b).loadLabel(mPackageManager).toString();
-                mLabelCache.put(b, labelB);
-            }
-            final int compareResult = mCollator.compare(labelA, labelB);
-            if (compareResult != 0) {
-                return compareResult;
-            }
-            return 0;
-        }
-    };
-
     public void dumpState() {
         Log.d(TAG, "mCallbacks=" + mCallbacks);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.data", mBgAllAppsList.data);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mBgAllAppsList.modified);
+        mIconCache.dumpState();
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
             Log.d(TAG, "mLoaderTask=null");
         }
+        for (LaneExecutor.LaneStats stats : sWorker.getStats()) {
+            Log.d(TAG, "worker lane " + stats);
+        }
+        sTrace.dump(TAG);
     }
 }
@@ -2,16 +2,20 @@ package com.cncoderx.launcher;
 
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -28,6 +32,8 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 
 public class LauncherProvider extends ContentProvider {
     private static final String TAG = LauncherProvider.class.getSimpleName();
@@ -35,7 +41,7 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     static final String AUTHORITY = "com.cncoderx.launcher.settings";
 
@@ -45,7 +51,11 @@ public class LauncherProvider extends ContentProvider {
     static final String DEFAULT_WORKSPACE_RESOURCE_ID =
             "DEFAULT_WORKSPACE_RESOURCE_ID";
 
+    // Number of row changes remembered for LauncherModel, see getChangeLog()
+    private static final int CHANGE_LOG_CAPACITY = 256;
+
     private DatabaseHelper mOpenHelper;
+    private final RowChangeLog mChangeLog = new RowChangeLog(CHANGE_LOG_CAPACITY);
 
     @Override
     public boolean onCreate() {
@@ -97,6 +107,7 @@ public class LauncherProvider extends ContentProvider {
             return null;
         }
 
+        mChangeLog.record(rowId, RowChangeLog.OP_INSERT);
         uri = ContentUris.withAppendedId(uri, rowId);
         sendNotify(uri);
 
@@ -120,6 +131,10 @@ public class LauncherProvider extends ContentProvider {
         } finally {
             db.endTransaction();
         }
+        for (ContentValues value : values) {
+            mChangeLog.record(value.getAsLong(LauncherSettings.Shortcuts._ID),
+                    RowChangeLog.OP_INSERT);
+        }
 
         sendNotify(uri);
         return values.length;
@@ -130,8 +145,10 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long[] rowIds = queryRowIds(db, args);
         int count = db.delete(args.table, args.where, args.args);
         if (count > 0) {
+            recordChanges(rowIds, RowChangeLog.OP_DELETE);
             sendNotify(uri);
         }
 
@@ -143,14 +160,64 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Before the update, the selection may depend on the columns being changed
+        long[] rowIds = queryRowIds(db, args);
         int count = db.update(args.table, values, args.where, args.args);
         if (count > 0) {
+            recordChanges(rowIds, RowChangeLog.OP_UPDATE);
             sendNotify(uri);
         }
 
         return count;
     }
 
+    /** Returns the ids of the rows selected by "args". */
+    private static long[] queryRowIds(SQLiteDatabase db, SqlArguments args) {
+        Cursor c = db.query(args.table, new String[] { LauncherSettings.Shortcuts._ID },
+                args.where, args.args, null, null, null);
+        try {
+            long[] rowIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                rowIds[i] = c.getLong(0);
+            }
+            return rowIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void recordChanges(long[] rowIds, int op) {
+        for (long rowId : rowIds) {
+            mChangeLog.record(rowId, op);
+        }
+    }
+
+    /**
+     * Returns the changes made to the shortcuts table through this provider, which lets the
+     * model reload only the rows that changed.
+     */
+    RowChangeLog getChangeLog() {
+        return mChangeLog;
+    }
+
+    /**
+     * Applies the operations in a single transaction, so that a batch of writes only costs
+     * one commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void sendNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
         if (notify == null || "true".equals(notify)) {
@@ -189,6 +256,7 @@ public class LauncherProvider extends ContentProvider {
                 deleteDatabase();
             }
             mOpenHelper.loadWorkspace(mOpenHelper.getWritableDatabase(), workspaceResId);
+            mChangeLog.invalidate();
             editor.commit();
         }
     }
@@ -202,6 +270,7 @@ public class LauncherProvider extends ContentProvider {
             SQLiteDatabase.deleteDatabase(dbFile);
         }
         mOpenHelper = new DatabaseHelper(getContext());
+        mChangeLog.invalidate();
     }
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
@@ -256,7 +325,10 @@ public class LauncherProvider extends ContentProvider {
                     LauncherSettings.Shortcuts.ICON + " BLOB," +
                     LauncherSettings.Shortcuts.URI + " TEXT," +
                     LauncherSettings.Shortcuts.DISPLAY_MODE + " INTEGER," +
-                    LauncherSettings.Shortcuts.PROFILE_ID + " INTEGER DEFAULT " + userSerialNumber +
+                    LauncherSettings.Shortcuts.PROFILE_ID + " INTEGER DEFAULT " + userSerialNumber + "," +
+                    LauncherSettings.Shortcuts.COMPONENT_PACKAGE + " TEXT," +
+                    LauncherSettings.Shortcuts.COMPONENT_CLASS + " TEXT," +
+                    LauncherSettings.Shortcuts.ICON_HASH + " INTEGER" +
                     ");");
         }
 
@@ -265,6 +337,74 @@ public class LauncherProvider extends ContentProvider {
             if (LOGD) {
                 Log.d(TAG, "onUpgrade triggered");
             }
+
+            int version = oldVersion;
+            if (version < 2) {
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + TABLE_SHORTCUTS + " ADD COLUMN " +
+                            LauncherSettings.Shortcuts.COMPONENT_PACKAGE + " TEXT;");
+                    db.execSQL("ALTER TABLE " + TABLE_SHORTCUTS + " ADD COLUMN " +
+                            LauncherSettings.Shortcuts.COMPONENT_CLASS + " TEXT;");
+                    fillLaunchComponents(db);
+                    db.setTransactionSuccessful();
+                    version = 2;
+                } catch (SQLException e) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(TAG, e.getMessage(), e);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (version == 2) {
+                try {
+                    // Icons without a hash are saved again, with one, after the next load
+                    db.execSQL("ALTER TABLE " + TABLE_SHORTCUTS + " ADD COLUMN " +
+                            LauncherSettings.Shortcuts.ICON_HASH + " INTEGER;");
+                    version = 3;
+                } catch (SQLException e) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+
+            if (version != DATABASE_VERSION) {
+                Log.w(TAG, "Destroying all old data.");
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SHORTCUTS);
+                onCreate(db);
+            }
+        }
+
+        /**
+         * Fills the component columns of the applications, parsing their intents one last
+         * time.
+         */
+        private void fillLaunchComponents(SQLiteDatabase db) {
+            Cursor c = db.query(TABLE_SHORTCUTS,
+                    new String[] {
+                            LauncherSettings.Shortcuts._ID, LauncherSettings.Shortcuts.INTENT },
+                    LauncherSettings.Shortcuts.ITEM_TYPE + "=" +
+                            LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION,
+                    null, null, null, null);
+            ContentValues values = new ContentValues();
+            try {
+                while (c.moveToNext()) {
+                    Intent intent;
+                    try {
+                        intent = Intent.parseUri(c.getString(1), 0);
+                    } catch (URISyntaxException e) {
+                        continue;
+                    }
+                    values.clear();
+                    ShortcutInfo.putLaunchComponent(values,
+                            LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION, intent);
+                    db.update(TABLE_SHORTCUTS, values,
+                            LauncherSettings.Shortcuts._ID + "=" + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
         }
 
         // Generates a new ID to use for an object in your database. This method should be only
@@ -399,6 +539,8 @@ public class LauncherProvider extends ContentProvider {
                 intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
                         Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
                 values.put(LauncherSettings.Shortcuts.INTENT, intent.toUri(0));
+                ShortcutInfo.putLaunchComponent(values,
+                        LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION, intent);
                 values.put(LauncherSettings.Shortcuts.TITLE, info.loadLabel(packageManager).toString());
                 values.put(LauncherSettings.Shortcuts.ITEM_TYPE, LauncherSettings.Shortcuts.ITEM_TYPE_APPLICATION);
                 values.put(LauncherSettings.Shortcuts.SPANX, 1);
@@ -88,6 +88,13 @@ class LauncherSettings {
          * <P>Type: BLOB</P>
          */
         static final String ICON = "icon";
+
+        /**
+         * A hash of the pixels of {@link #ICON}, see {@link BitmapInterner#hashPixels}, so
+         * that it can be checked against the current icon without decoding it.
+         * <P>Type: INTEGER</P>
+         */
+        static final String ICON_HASH = "iconHash";
     }
 
     /**
@@ -155,6 +162,19 @@ class LauncherSettings {
          */
         static final String SPANY = "spanY";
 
+        /**
+         * The package of the activity of an application, if its intent is the plain launch
+         * intent of that activity, null otherwise. Saves parsing {@link #INTENT}.
+         * <P>Type: TEXT</P>
+         */
+        static final String COMPONENT_PACKAGE = "componentPackage";
+
+        /**
+         * The class of the activity of an application, see {@link #COMPONENT_PACKAGE}.
+         * <P>Type: TEXT</P>
+         */
+        static final String COMPONENT_CLASS = "componentClass";
+
         /**
          * The profile id of the item in the cell.
          * <P>
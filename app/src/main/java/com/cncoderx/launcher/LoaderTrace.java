@@ -0,0 +1,107 @@
+package com.cncoderx.launcher;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records how long each phase of loading and binding takes, as named spans, so that cold
+ * start can be compared between releases. Spans are also emitted as {@link Trace} sections.
+ *
+ * Spans go into a ring buffer that keeps the last {@link #CAPACITY} of them and is written
+ * without locking from any thread. Milestones, such as the first page being bound, are kept
+ * with the time they were first reached since the model was created, which is the cold start
+ * latency. {@link #dump} logs both.
+ */
+final class LoaderTrace {
+    static final String QUERY = "query";
+    static final String RESOLVE = "resolve";
+    static final String ICON_RENDER = "icon render";
+    static final String SORT = "sort";
+    static final String BIND_CHUNK = "bind chunk";
+
+    static final String SNAPSHOT_BOUND = "snapshot bound";
+    static final String FIRST_PAGE_BOUND = "first page bound";
+    static final String WORKSPACE_BOUND = "workspace bound";
+    static final String ALL_APPS_BOUND = "all apps bound";
+
+    private static final int CAPACITY = 512;
+
+    private static final class Span {
+        final String name;
+        final long durationNanos;
+
+        Span(String name, long durationNanos) {
+            this.name = name;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    private final AtomicReferenceArray<Span> mSpans = new AtomicReferenceArray<Span>(CAPACITY);
+    private final AtomicLong mCount = new AtomicLong();
+    private final long mCreatedMillis = SystemClock.uptimeMillis();
+    private final ConcurrentHashMap<String, Long> mMilestones =
+            new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Starts a span on the calling thread and returns its start, to be passed to
+     * {@link #end} on the same thread.
+     */
+    long begin(String name) {
+        Trace.beginSection(name);
+        return System.nanoTime();
+    }
+
+    void end(String name, long start) {
+        final long duration = System.nanoTime() - start;
+        Trace.endSection();
+        mSpans.set((int) (mCount.getAndIncrement() % CAPACITY), new Span(name, duration));
+    }
+
+    /** Records that a milestone was reached, if it wasn't already. */
+    void mark(String name) {
+        mMilestones.putIfAbsent(name, SystemClock.uptimeMillis() - mCreatedMillis);
+    }
+
+    /** Logs the milestones and, for each span name, the count, total and longest span. */
+    void dump(String tag) {
+        for (String name : new String[] {
+                SNAPSHOT_BOUND, FIRST_PAGE_BOUND, WORKSPACE_BOUND, ALL_APPS_BOUND }) {
+            Long time = mMilestones.get(name);
+            if (time != null) {
+                Log.d(tag, name + " at " + time + "ms");
+            }
+        }
+
+        // name -> count, total and max in nanoseconds
+        final LinkedHashMap<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        final long count = Math.min(mCount.get(), CAPACITY);
+        for (int i = 0; i < count; i++) {
+            Span span = mSpans.get(i);
+            if (span == null) {
+                // Being written
+                continue;
+            }
+            long[] total = totals.get(span.name);
+            if (total == null) {
+                total = new long[3];
+                totals.put(span.name, total);
+            }
+            total[0]++;
+            total[1] += span.durationNanos;
+            total[2] = Math.max(total[2], span.durationNanos);
+        }
+        Log.d(tag, "last " + count + " of " + mCount.get() + " loader spans:");
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            Log.d(tag, "  " + entry.getKey() + ": " + total[0] + " in "
+                    + total[1] / 1000000 + "ms, longest " + total[2] / 1000000 + "ms");
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.cncoderx.launcher;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to objects that doesn't box its keys, so lookups never allocate and
+ * filling a map that is large enough doesn't either.
+ *
+ * Entries are kept in two dense arrays, and found through an open-addressing table of indices
+ * into them. Like {@link android.util.LongSparseArray}, the entries can be iterated with
+ * {@link #keyAt} and {@link #valueAt}, in no particular order; removing an entry moves the
+ * last one into its place. Null values are not allowed.
+ */
+final class LongObjectMap<V> {
+    private static final int MIN_TABLE_SIZE = 8;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+    // Index + 1 into mKeys and mValues, 0 for an empty slot. Its length is a power of two
+    private int[] mTable;
+
+    LongObjectMap() {
+        this(0);
+    }
+
+    /** Creates a map that can hold "capacity" entries without growing. */
+    LongObjectMap(int capacity) {
+        int tableSize = MIN_TABLE_SIZE;
+        while (maxSize(tableSize) < capacity) {
+            tableSize <<= 1;
+        }
+        mTable = new int[tableSize];
+        mKeys = new long[maxSize(tableSize)];
+        mValues = new Object[maxSize(tableSize)];
+    }
+
+    // The table is kept at most three quarters full
+    private static int maxSize(int tableSize) {
+        return tableSize - (tableSize >> 2);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the key of the entry at "index", which is less than {@link #size()}. */
+    long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /** Returns the value of the entry at "index", which is less than {@link #size()}. */
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) mValues[index];
+    }
+
+    boolean containsKey(long key) {
+        return findSlot(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int slot = findSlot(key);
+        return slot >= 0 ? (V) mValues[mTable[slot] - 1] : null;
+    }
+
+    /** Maps "key" to "value" and returns the value it was mapped to before, or null. */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            int index = mTable[slot] - 1;
+            V old = (V) mValues[index];
+            mValues[index] = value;
+            return old;
+        }
+        if (mSize == mKeys.length) {
+            grow();
+            slot = findSlot(key);
+        }
+        mKeys[mSize] = key;
+        mValues[mSize] = value;
+        mSize++;
+        mTable[~slot] = mSize;
+        return null;
+    }
+
+    /** Removes the mapping of "key" and returns the value it was mapped to, or null. */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return null;
+        }
+        int index = mTable[slot] - 1;
+        V old = (V) mValues[index];
+        deleteSlot(slot);
+
+        int last = mSize - 1;
+        if (index != last) {
+            // Fill the hole with the last entry
+            mTable[findSlot(mKeys[last])] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mValues[last] = null;
+        mSize = last;
+        return old;
+    }
+
+    /** Removes all entries, keeping the capacity. */
+    void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mTable, 0);
+            Arrays.fill(mValues, 0, mSize, null);
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Returns the slot of "key", or if it isn't in the table, ~ the empty slot where it would
+     * go.
+     */
+    private int findSlot(long key) {
+        final int mask = mTable.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int entry = mTable[slot];
+            if (entry == 0) {
+                return ~slot;
+            }
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Empties "slot", moving back the entries after it that could not be put in their own
+     * slot, so that the table never needs tombstones.
+     */
+    private void deleteSlot(int slot) {
+        final int mask = mTable.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int entry = mTable[next];
+            if (entry == 0) {
+                break;
+            }
+            int home = hash(mKeys[entry - 1]) & mask;
+            // The entry stays unless its home slot is cyclically in (hole, next]
+            boolean stays = hole <= next
+                    ? hole < home && home <= next
+                    : hole < home || home <= next;
+            if (!stays) {
+                mTable[hole] = entry;
+                hole = next;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void grow() {
+        int tableSize = mTable.length << 1;
+        mTable = new int[tableSize];
+        mKeys = Arrays.copyOf(mKeys, maxSize(tableSize));
+        mValues = Arrays.copyOf(mValues, maxSize(tableSize));
+        final int mask = tableSize - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mask;
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = i + 1;
+        }
+    }
+}
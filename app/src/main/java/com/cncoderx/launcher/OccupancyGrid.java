@@ -0,0 +1,132 @@
+package com.cncoderx.launcher;
+
+import java.util.Arrays;
+
+/**
+ * Which cells of a screen are occupied, one bit per cell. Each row is packed in whole longs,
+ * so a span is tested or marked a word at a time instead of cell by cell.
+ *
+ * Used by the loader to reject overlapping items and by {@link CellLayout} for the cells its
+ * children occupy, so that both decide placement the same way.
+ */
+final class OccupancyGrid {
+    private final int mCountX;
+    private final int mCountY;
+    private final int mWordsPerRow;
+    private final long[] mBits;
+
+    OccupancyGrid(int countX, int countY) {
+        mCountX = countX;
+        mCountY = countY;
+        mWordsPerRow = (countX + 63) >> 6;
+        mBits = new long[mWordsPerRow * countY];
+    }
+
+    int getCountX() {
+        return mCountX;
+    }
+
+    int getCountY() {
+        return mCountY;
+    }
+
+    /** Returns whether the span lies within the grid. */
+    boolean contains(int cellX, int cellY, int spanX, int spanY) {
+        return cellX >= 0 && cellY >= 0 && spanX > 0 && spanY > 0
+                && spanX <= mCountX - cellX && spanY <= mCountY - cellY;
+    }
+
+    boolean isOccupied(int cellX, int cellY) {
+        if (cellX < 0 || cellX >= mCountX || cellY < 0 || cellY >= mCountY) {
+            throw new IndexOutOfBoundsException("Cell " + cellX + "," + cellY
+                    + " outside " + mCountX + "x" + mCountY);
+        }
+        return (mBits[cellY * mWordsPerRow + (cellX >> 6)] & (1L << cellX)) != 0;
+    }
+
+    /** Returns whether the span lies within the grid and none of its cells is occupied. */
+    boolean isVacant(int cellX, int cellY, int spanX, int spanY) {
+        return contains(cellX, cellY, spanX, spanY)
+                && findOccupied(cellX, cellY, spanX, spanY) < 0;
+    }
+
+    /**
+     * Returns the first occupied cell of a span within the grid, in row-major order, as
+     * cellY * countX + cellX, or -1 if the whole span is vacant.
+     */
+    int findOccupied(int cellX, int cellY, int spanX, int spanY) {
+        final int firstWord = cellX >> 6;
+        final int lastWord = (cellX + spanX - 1) >> 6;
+        for (int y = cellY; y < cellY + spanY; y++) {
+            final int row = y * mWordsPerRow;
+            for (int w = firstWord; w <= lastWord; w++) {
+                long hits = mBits[row + w] & spanMask(w, cellX, spanX);
+                if (hits != 0) {
+                    return y * mCountX + (w << 6) + Long.numberOfTrailingZeros(hits);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the cells of a span as occupied or vacant. The part of the span outside the grid
+     * is ignored.
+     */
+    void set(int cellX, int cellY, int spanX, int spanY, boolean occupied) {
+        if (cellX < 0 || cellY < 0) {
+            return;
+        }
+        spanX = Math.min(spanX, mCountX - cellX);
+        spanY = Math.min(spanY, mCountY - cellY);
+        if (spanX <= 0 || spanY <= 0) {
+            return;
+        }
+        final int firstWord = cellX >> 6;
+        final int lastWord = (cellX + spanX - 1) >> 6;
+        for (int y = cellY; y < cellY + spanY; y++) {
+            final int row = y * mWordsPerRow;
+            for (int w = firstWord; w <= lastWord; w++) {
+                long mask = spanMask(w, cellX, spanX);
+                if (occupied) {
+                    mBits[row + w] |= mask;
+                } else {
+                    mBits[row + w] &= ~mask;
+                }
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mBits, 0);
+    }
+
+    /**
+     * Finds the first vacant span in row-major order and stores its cell in "vacant".
+     *
+     * @return whether there is one
+     */
+    boolean findVacant(int[] vacant, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            for (int x = 0; x + spanX <= mCountX; x++) {
+                int occupied = findOccupied(x, y, spanX, spanY);
+                if (occupied < 0) {
+                    vacant[0] = x;
+                    vacant[1] = y;
+                    return true;
+                }
+                // Spans starting up to the occupied cell's column all cover it
+                x = occupied % mCountX;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the bits of word "w" of a row that are within [cellX, cellX + spanX). */
+    private static long spanMask(int w, int cellX, int spanX) {
+        final int start = Math.max(cellX - (w << 6), 0);
+        final int end = Math.min(cellX + spanX - (w << 6), 64);
+        long mask = end == 64 ? -1L : (1L << end) - 1;
+        return mask & (-1L << start);
+    }
+}
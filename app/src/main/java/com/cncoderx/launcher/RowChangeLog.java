@@ -0,0 +1,95 @@
+package com.cncoderx.launcher;
+
+import java.util.HashSet;
+
+/**
+ * Remembers which rows of a table changed, so that a reader who loaded the table at some
+ * sequence number can catch up by reading only those rows again.
+ *
+ * Only the last {@link #getCapacity()} changes are kept. A reader who fell further behind, or
+ * who loaded the table before {@link #invalidate()}, has to load everything again.
+ */
+final class RowChangeLog {
+    static final int OP_INSERT = 0;
+    static final int OP_UPDATE = 1;
+    static final int OP_DELETE = 2;
+
+    private final long[] mRowIds;
+    private final int[] mOps;
+    private long mSequence;
+    // Changes up to this sequence number are no longer known
+    private long mForgotten;
+
+    /** The rows that changed after a given sequence number. */
+    static final class Delta {
+        /** The sequence number the reader is at once it has applied this delta. */
+        final long sequence;
+        /** Rows that were inserted or updated, and still exist. */
+        final HashSet<Long> changed = new HashSet<Long>();
+        /** Rows that were deleted. */
+        final HashSet<Long> removed = new HashSet<Long>();
+
+        Delta(long sequence) {
+            this.sequence = sequence;
+        }
+
+        boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    RowChangeLog(int capacity) {
+        mRowIds = new long[capacity];
+        mOps = new int[capacity];
+    }
+
+    int getCapacity() {
+        return mRowIds.length;
+    }
+
+    /** Returns the sequence number of the latest change. */
+    synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /** Records a change to one row and returns its sequence number. */
+    synchronized long record(long rowId, int op) {
+        mSequence++;
+        int index = (int) (mSequence % mRowIds.length);
+        mRowIds[index] = rowId;
+        mOps[index] = op;
+        mForgotten = Math.max(mForgotten, mSequence - mRowIds.length);
+        return mSequence;
+    }
+
+    /**
+     * Forgets all changes, for changes that can't be tracked by row such as a new database.
+     */
+    synchronized void invalidate() {
+        mSequence++;
+        mForgotten = mSequence;
+    }
+
+    /**
+     * Returns the rows that changed after "sequence", or null if they are no longer known.
+     * A row changed several times is only reported once, according to its last change.
+     */
+    synchronized Delta getChangesSince(long sequence) {
+        if (sequence < mForgotten || sequence > mSequence) {
+            return null;
+        }
+        Delta delta = new Delta(mSequence);
+        for (long s = sequence + 1; s <= mSequence; s++) {
+            int index = (int) (s % mRowIds.length);
+            Long rowId = mRowIds[index];
+            if (mOps[index] == OP_DELETE) {
+                delta.changed.remove(rowId);
+                delta.removed.add(rowId);
+            } else {
+                delta.removed.remove(rowId);
+                delta.changed.add(rowId);
+            }
+        }
+        return delta;
+    }
+}
@@ -18,10 +18,12 @@ package com.cncoderx.launcher;
 
 import java.util.ArrayList;
 
+import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.os.Bundle;
 import android.util.Log;
 
 /**
@@ -83,7 +85,7 @@ class ShortcutInfo extends ItemInfo {
     }
 
     public void setIcon(Bitmap b) {
-        mIcon = b;
+        mIcon = Utilities.internIcon(b);
     }
 
     public Bitmap getIcon(IconCache iconCache) {
@@ -93,8 +95,34 @@ class ShortcutInfo extends ItemInfo {
         return mIcon;
     }
 
+    /**
+     * Returns whether the icon is known, in which case {@link #getIcon(IconCache)} returns
+     * right away.
+     */
+    boolean isIconLoaded() {
+        return mIcon != null;
+    }
+
+    /**
+     * Asynchronous version of {@link #updateIcon(IconCache)}. The icon is set on this and
+     * handed to "callback" on the main thread, unless the request is cancelled first.
+     */
+    IconCache.IconLoadRequest updateIconAsync(final IconCache iconCache,
+            final IconCache.IconCallback callback) {
+        return iconCache.getIconAsync(intent, user, new IconCache.IconCallback() {
+            @Override
+            public void onIconLoaded(Bitmap icon) {
+                mIcon = icon;
+                usingLowResIcon = false;
+                usingFallbackIcon = iconCache.isDefaultIcon(icon);
+                callback.onIconLoaded(icon);
+            }
+        });
+    }
+
     public void updateIcon(IconCache iconCache) {
         mIcon = iconCache.getIcon(intent, user);
+        usingLowResIcon = false;
         usingFallbackIcon = iconCache.isDefaultIcon(mIcon);
     }
 
@@ -116,6 +144,66 @@ class ShortcutInfo extends ItemInfo {
         updateUser(this.intent);
     }
 
+    private static final int LAUNCH_FLAGS =
+            Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED;
+
+    /** Returns the intent that launches "component" from the launcher. */
+    static Intent makeLaunchIntent(ComponentName component) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        intent.setComponent(component);
+        intent.setFlags(LAUNCH_FLAGS);
+        return intent;
+    }
+
+    /**
+     * Returns the component of "intent" if {@link #makeLaunchIntent} builds the same intent
+     * from it, apart from the profile extra, and null otherwise.
+     */
+    static ComponentName getLaunchComponent(Intent intent) {
+        if (intent.getComponent() == null
+                || !Intent.ACTION_MAIN.equals(intent.getAction())
+                || intent.getCategories() == null
+                || intent.getCategories().size() != 1
+                || !intent.hasCategory(Intent.CATEGORY_LAUNCHER)
+                || intent.getData() != null
+                || intent.getType() != null
+                || intent.getPackage() != null
+                || intent.getSelector() != null
+                || intent.getSourceBounds() != null
+                || intent.getFlags() != LAUNCH_FLAGS) {
+            return null;
+        }
+        Bundle extras = intent.getExtras();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                if (!EXTRA_PROFILE.equals(key)) {
+                    return null;
+                }
+            }
+        }
+        return intent.getComponent();
+    }
+
+    /**
+     * Puts the component columns of an item, which let the loader skip parsing the intent of
+     * apps. They are left empty for anything else.
+     */
+    static void putLaunchComponent(ContentValues values, int itemType, Intent intent) {
+        ComponentName component = null;
+        if (intent != null
+                && itemType == LauncherSettings.BaseLauncherColumns.ITEM_TYPE_APPLICATION) {
+            component = getLaunchComponent(intent);
+        }
+        if (component != null) {
+            values.put(LauncherSettings.Shortcuts.COMPONENT_PACKAGE, component.getPackageName());
+            values.put(LauncherSettings.Shortcuts.COMPONENT_CLASS, component.getClassName());
+        } else {
+            values.putNull(LauncherSettings.Shortcuts.COMPONENT_PACKAGE);
+            values.putNull(LauncherSettings.Shortcuts.COMPONENT_CLASS);
+        }
+    }
+
     @Override
     void onAddToDatabase(Context context, ContentValues values) {
         super.onAddToDatabase(context, values);
@@ -125,13 +213,14 @@ class ShortcutInfo extends ItemInfo {
 
         String uri = intent != null ? intent.toUri(0) : null;
         values.put(LauncherSettings.BaseLauncherColumns.INTENT, uri);
+        putLaunchComponent(values, itemType, intent);
 
         if (customIcon) {
             values.put(LauncherSettings.BaseLauncherColumns.ICON_TYPE,
                     LauncherSettings.BaseLauncherColumns.ICON_TYPE_BITMAP);
             writeBitmap(values, mIcon);
         } else {
-            if (!usingFallbackIcon) {
+            if (!usingFallbackIcon && !usingLowResIcon) {
                 writeBitmap(values, mIcon);
             }
             values.put(LauncherSettings.BaseLauncherColumns.ICON_TYPE,
@@ -0,0 +1,88 @@
+package com.cncoderx.launcher;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collation keys in their byte form. Comparing two keys as unsigned bytes gives the same
+ * order as {@link Collator#compare} on the labels they were made from, without normalizing
+ * the labels again on every comparison, so keys can be computed once and persisted.
+ *
+ * Keys are only comparable with keys made for the same locale.
+ */
+final class SortKeys {
+    private static final ThreadLocal<Collator> sCollator = new ThreadLocal<Collator>();
+    private static final ThreadLocal<Locale> sCollatorLocale = new ThreadLocal<Locale>();
+
+    private SortKeys() {
+    }
+
+    /** Returns the sort key of "label" in the default locale. */
+    static byte[] forLabel(String label) {
+        return forLabel(label, Locale.getDefault());
+    }
+
+    /** Returns the sort key of "label" in "locale". */
+    static byte[] forLabel(String label, Locale locale) {
+        // Collators aren't thread safe, so every thread gets its own
+        Collator collator = sCollator.get();
+        if (collator == null || !locale.equals(sCollatorLocale.get())) {
+            collator = Collator.getInstance(locale);
+            sCollator.set(collator);
+            sCollatorLocale.set(locale);
+        }
+        return collator.getCollationKey(label != null ? label : "").toByteArray();
+    }
+
+    /** Compares two sort keys as unsigned bytes. */
+    static int compare(byte[] a, byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xff) - (b[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static class Keyed<T> {
+        final byte[] key;
+        final T item;
+
+        Keyed(byte[] key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+
+    private static final Comparator<Keyed<?>> KEYED_COMPARATOR = new Comparator<Keyed<?>>() {
+        @Override
+        public int compare(Keyed<?> lhs, Keyed<?> rhs) {
+            return SortKeys.compare(lhs.key, rhs.key);
+        }
+    };
+
+    /**
+     * Sorts "items" by the sort keys at the same index in "keys", keeping the order of
+     * items with equal keys.
+     */
+    static <T> void sort(List<T> items, List<byte[]> keys) {
+        final int count = items.size();
+        if (keys.size() != count) {
+            throw new IllegalArgumentException("Expected " + count + " keys, got " + keys.size());
+        }
+        ArrayList<Keyed<T>> keyed = new ArrayList<Keyed<T>>(count);
+        for (int i = 0; i < count; i++) {
+            keyed.add(new Keyed<T>(keys.get(i), items.get(i)));
+        }
+        Collections.sort(keyed, KEYED_COMPARATOR);
+        for (int i = 0; i < count; i++) {
+            items.set(i, keyed.get(i).item);
+        }
+    }
+}
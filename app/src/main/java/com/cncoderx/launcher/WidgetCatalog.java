@@ -0,0 +1,178 @@
+package com.cncoderx.launcher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The widgets and shortcuts that can be added to the workspace, sorted by label and indexed
+ * by package. Labels are turned into sort keys once, when an item is loaded, and an update
+ * only reloads the items of the packages that changed and inserts them in place.
+ *
+ * Sort keys are made for the locale at the time, so the catalog has to be loaded again
+ * after the locale changes. Not thread safe, LauncherModel only uses it on the worker thread.
+ */
+final class WidgetCatalog {
+    /** Loads the items and tells what they are, see LauncherModel. */
+    interface Source {
+        /** Returns the items of the given packages, or of all packages if it is null. */
+        List<Object> load(Set<String> packages);
+
+        String getPackageName(Object item);
+
+        String getLabel(Object item);
+    }
+
+    private static final class Entry {
+        final Object item;
+        final String packageName;
+        final byte[] sortKey;
+
+        Entry(Object item, String packageName, byte[] sortKey) {
+            this.item = item;
+            this.packageName = packageName;
+            this.sortKey = sortKey;
+        }
+    }
+
+    private final Source mSource;
+    private boolean mLoaded;
+    // By sort key, then package name, then the order the source returned them in
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    // package name -> its entries, in the same order
+    private final HashMap<String, ArrayList<Entry>> mByPackage =
+            new HashMap<String, ArrayList<Entry>>();
+
+    WidgetCatalog(Source source) {
+        mSource = source;
+    }
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /** Drops everything, the next {@link #load} reads all packages again. */
+    void invalidate() {
+        mLoaded = false;
+        mEntries.clear();
+        mByPackage.clear();
+    }
+
+    /** Loads the items of all packages and returns them in order. */
+    ArrayList<Object> load() {
+        invalidate();
+        for (Object item : mSource.load(null)) {
+            insert(newEntry(item));
+        }
+        mLoaded = true;
+        return getAll();
+    }
+
+    /**
+     * Loads the items of "packages" again, loading everything first if nothing was, and
+     * returns the current items of those packages in order. A package that is gone has none.
+     */
+    ArrayList<Object> update(Collection<String> packages) {
+        if (!mLoaded) {
+            load();
+            return getItems(packages);
+        }
+        final HashSet<String> changed = new HashSet<String>(packages);
+        boolean hadEntries = false;
+        for (String packageName : changed) {
+            hadEntries |= mByPackage.remove(packageName) != null;
+        }
+        if (hadEntries) {
+            // One pass instead of a search per removed entry
+            int kept = 0;
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.get(i);
+                if (!changed.contains(entry.packageName)) {
+                    mEntries.set(kept++, entry);
+                }
+            }
+            mEntries.subList(kept, mEntries.size()).clear();
+        }
+
+        for (Object item : mSource.load(changed)) {
+            Entry entry = newEntry(item);
+            if (changed.contains(entry.packageName)) {
+                insert(entry);
+            }
+        }
+        return getItems(packages);
+    }
+
+    /** Returns the items of all packages in order. */
+    ArrayList<Object> getAll() {
+        final ArrayList<Object> items = new ArrayList<Object>(mEntries.size());
+        for (Entry entry : mEntries) {
+            items.add(entry.item);
+        }
+        return items;
+    }
+
+    /** Returns the items of "packages" in order. */
+    ArrayList<Object> getItems(Collection<String> packages) {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (String packageName : new HashSet<String>(packages)) {
+            ArrayList<Entry> packageEntries = mByPackage.get(packageName);
+            if (packageEntries == null) {
+                continue;
+            }
+            for (Entry entry : packageEntries) {
+                entries.add(upperBound(entries, entry), entry);
+            }
+        }
+        final ArrayList<Object> items = new ArrayList<Object>(entries.size());
+        for (Entry entry : entries) {
+            items.add(entry.item);
+        }
+        return items;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    private Entry newEntry(Object item) {
+        return new Entry(item, mSource.getPackageName(item),
+                SortKeys.forLabel(mSource.getLabel(item)));
+    }
+
+    private void insert(Entry entry) {
+        mEntries.add(upperBound(mEntries, entry), entry);
+        ArrayList<Entry> packageEntries = mByPackage.get(entry.packageName);
+        if (packageEntries == null) {
+            packageEntries = new ArrayList<Entry>();
+            mByPackage.put(entry.packageName, packageEntries);
+        }
+        packageEntries.add(upperBound(packageEntries, entry), entry);
+    }
+
+    /** Returns the index after the last of "entries" that doesn't sort after "entry". */
+    private static int upperBound(ArrayList<Entry> entries, Entry entry) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(entries.get(mid), entry) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(Entry a, Entry b) {
+        final int result = SortKeys.compare(a.sortKey, b.sortKey);
+        if (result != 0) {
+            return result;
+        }
+        return a.packageName.compareTo(b.packageName);
+    }
+}
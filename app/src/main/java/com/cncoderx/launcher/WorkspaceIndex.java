@@ -0,0 +1,162 @@
+package com.cncoderx.launcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The workspace items of each screen, kept in row-major order (top to bottom, then left to
+ * right) as items are added, moved and removed, so that a page can be bound without sorting
+ * or looking at the items of the other pages.
+ *
+ * Items are looked up by id and must have one. The index remembers where it put an item, so
+ * {@link #put} can be called after the item's screen or cell changed to move it.
+ */
+final class WorkspaceIndex {
+    private static final class Slot {
+        final ItemInfo item;
+        int screen;
+        long position;
+
+        Slot(ItemInfo item) {
+            this.item = item;
+        }
+    }
+
+    private final TreeMap<Integer, ArrayList<Slot>> mScreens =
+            new TreeMap<Integer, ArrayList<Slot>>();
+    private final LongObjectMap<Slot> mSlots = new LongObjectMap<Slot>();
+
+    /** Returns a key that orders cells by row, then column. */
+    private static long position(int cellX, int cellY) {
+        return ((long) cellY << 32) + cellX;
+    }
+
+    int size() {
+        return mSlots.size();
+    }
+
+    void clear() {
+        mScreens.clear();
+        mSlots.clear();
+    }
+
+    /** Adds "item", or moves it to its current screen and cell if it is already indexed. */
+    void put(ItemInfo item) {
+        Slot slot = mSlots.get(item.id);
+        final long position = position(item.cellX, item.cellY);
+        if (slot != null && slot.item == item) {
+            if (slot.screen == item.screen && slot.position == position) {
+                return;
+            }
+            removeFromScreen(slot);
+        } else {
+            if (slot != null) {
+                // Replaced by another instance
+                removeFromScreen(slot);
+            }
+            slot = new Slot(item);
+            mSlots.put(item.id, slot);
+        }
+        slot.screen = item.screen;
+        slot.position = position;
+
+        ArrayList<Slot> screen = mScreens.get(slot.screen);
+        if (screen == null) {
+            screen = new ArrayList<Slot>();
+            mScreens.put(slot.screen, screen);
+        }
+        // After any items in the same cell, so that they keep the order they were added in
+        screen.add(search(screen, position + 1), slot);
+    }
+
+    /** Removes "item", if this instance of it is indexed. */
+    boolean remove(ItemInfo item) {
+        Slot slot = mSlots.get(item.id);
+        if (slot == null || slot.item != item) {
+            return false;
+        }
+        mSlots.remove(item.id);
+        removeFromScreen(slot);
+        return true;
+    }
+
+    /** Adds the items of "screen" to "out", in row-major order. */
+    void getScreen(int screen, List<? super ItemInfo> out) {
+        ArrayList<Slot> slots = mScreens.get(screen);
+        if (slots != null) {
+            addItems(slots, out);
+        }
+    }
+
+    /** Adds the items of all screens but "screen" to "out", by screen, then row-major. */
+    void getOtherScreens(int screen, List<? super ItemInfo> out) {
+        for (Map.Entry<Integer, ArrayList<Slot>> entry : mScreens.entrySet()) {
+            if (entry.getKey() != screen) {
+                addItems(entry.getValue(), out);
+            }
+        }
+    }
+
+    /** Adds all items to "out", by screen, then row-major. */
+    void getAll(List<? super ItemInfo> out) {
+        for (ArrayList<Slot> slots : mScreens.values()) {
+            addItems(slots, out);
+        }
+    }
+
+    /** Returns the item that covers the given cell of "screen", or null. */
+    ItemInfo getItemAt(int screen, int cellX, int cellY) {
+        ArrayList<Slot> slots = mScreens.get(screen);
+        if (slots == null) {
+            return null;
+        }
+        // Items that start below the cell can't cover it
+        final int end = search(slots, position(Integer.MIN_VALUE, cellY + 1));
+        for (int i = 0; i < end; i++) {
+            ItemInfo item = slots.get(i).item;
+            if (item.cellX <= cellX && cellX < item.cellX + item.spanX
+                    && item.cellY <= cellY && cellY < item.cellY + item.spanY) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void removeFromScreen(Slot slot) {
+        ArrayList<Slot> slots = mScreens.get(slot.screen);
+        final int count = slots.size();
+        for (int i = search(slots, slot.position); i < count; i++) {
+            if (slots.get(i) == slot) {
+                slots.remove(i);
+                break;
+            }
+        }
+        if (slots.isEmpty()) {
+            mScreens.remove(slot.screen);
+        }
+    }
+
+    /** Returns the index of the first slot at or after "position". */
+    private static int search(ArrayList<Slot> slots, long position) {
+        int low = 0;
+        int high = slots.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (slots.get(mid).position < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void addItems(ArrayList<Slot> slots, List<? super ItemInfo> out) {
+        final int count = slots.size();
+        for (int i = 0; i < count; i++) {
+            out.add(slots.get(i).item);
+        }
+    }
+}
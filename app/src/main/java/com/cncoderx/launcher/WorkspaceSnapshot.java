@@ -0,0 +1,143 @@
+package com.cncoderx.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format of the workspace snapshot, a copy of the last bound workspace that is
+ * shown at cold start before the database has been loaded. It holds what is needed to show
+ * an item; icons are looked up in the icon cache.
+ *
+ * Layout: magic, version, item count, the items, and a CRC32 of everything before it. A
+ * snapshot that doesn't match is ignored, there is always the database to fall back to.
+ * Strings are UTF-8 bytes after their length, or a length of -1 for null, since intents
+ * with extras can be longer than {@link DataOutputStream#writeUTF} allows.
+ */
+final class WorkspaceSnapshot {
+    private static final int MAGIC = 0x4c575331; // "LWS1"
+    static final int VERSION = 2;
+    // The size of an entry with no title and an empty intent
+    private static final int MIN_ENTRY_SIZE = 8 + 6 * 4 + 8 + 4 + 4;
+
+    /** An item of the workspace. */
+    static final class Entry {
+        long id;
+        int itemType;
+        int screen;
+        int cellX;
+        int cellY;
+        int spanX;
+        int spanY;
+        long profileSerial;
+        String title;
+        String intent;
+    }
+
+    private WorkspaceSnapshot() {
+    }
+
+    static byte[] encode(List<Entry> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (entries.size() + 1));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.id);
+                out.writeInt(entry.itemType);
+                out.writeInt(entry.screen);
+                out.writeInt(entry.cellX);
+                out.writeInt(entry.cellY);
+                out.writeInt(entry.spanX);
+                out.writeInt(entry.spanY);
+                out.writeLong(entry.profileSerial);
+                writeString(out, entry.title);
+                writeString(out, entry.intent);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing bytes to memory doesn't fail, whatever the length of the strings
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Returns the string at the current position, see {@link #writeString}. */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("String of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the entries of a snapshot, or null if "data" isn't a complete snapshot of the
+     * current version.
+     */
+    static List<Entry> decode(byte[] data) {
+        if (data == null || data.length < 20) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > data.length / MIN_ENTRY_SIZE) {
+                return null;
+            }
+            ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.id = in.readLong();
+                entry.itemType = in.readInt();
+                entry.screen = in.readInt();
+                entry.cellX = in.readInt();
+                entry.cellY = in.readInt();
+                entry.spanX = in.readInt();
+                entry.spanY = in.readInt();
+                entry.profileSerial = in.readLong();
+                entry.title = readString(in);
+                entry.intent = readString(in);
+                entries.add(entry);
+            }
+            if (in.readLong() != crc.getValue() || in.available() != 0) {
+                return null;
+            }
+            return entries;
+        } catch (IOException e) {
+            // Truncated, or a length is off
+            return null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.cncoderx.launcher;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the writes to the shortcuts table and writes them later, all in one transaction.
+ * Writes to the same row are merged, so dragging an item around only writes its last
+ * position, and an item that is added and removed again is never written at all.
+ *
+ * The writes are flushed on the worker thread shortly after the first one is queued, and by
+ * {@link #flush()}, which has to be called before reading the table and before the process
+ * can be killed.
+ */
+final class WriteBehindQueue {
+    private static final String TAG = "Launcher.WriteBehindQueue";
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_UPDATE = 1;
+    private static final int OP_DELETE = 2;
+
+    private static final class PendingWrite {
+        int op;
+        ContentValues values;
+
+        PendingWrite(int op, ContentValues values) {
+            this.op = op;
+            this.values = values;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final long mDelayMillis;
+    private final Handler mTimer = new Handler(Looper.getMainLooper());
+    private final Runnable mScheduleFlush;
+    // Makes flushes commit in the order their writes were taken out of mPending
+    private final Object mFlushLock = new Object();
+
+    // Guarded by this
+    private final LinkedHashMap<Long, PendingWrite> mPending =
+            new LinkedHashMap<Long, PendingWrite>();
+    private boolean mNotify;
+
+    WriteBehindQueue(ContentResolver resolver, long delayMillis,
+            final LaneExecutor executor, final LaneExecutor.Lane lane) {
+        mResolver = resolver;
+        mDelayMillis = delayMillis;
+        final Runnable flush = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+        mScheduleFlush = new Runnable() {
+            public void run() {
+                executor.post(lane, flush);
+            }
+        };
+    }
+
+    /**
+     * Queues the insertion of a row. With "notify", observers of the table are notified once
+     * the row is written.
+     */
+    synchronized void insert(long id, ContentValues values, boolean notify) {
+        PendingWrite pending = mPending.get(id);
+        if (pending != null) {
+            // Ids are handed out by LauncherProvider.generateNewId() and never reused
+            throw new IllegalStateException("Row " + id + " inserted twice");
+        }
+        enqueueLocked(id, new PendingWrite(OP_INSERT, new ContentValues(values)));
+        mNotify |= notify;
+    }
+
+    /** Queues an update of the given columns of a row. */
+    synchronized void update(long id, ContentValues values) {
+        PendingWrite pending = mPending.get(id);
+        if (pending == null) {
+            enqueueLocked(id, new PendingWrite(OP_UPDATE, new ContentValues(values)));
+        } else if (pending.op != OP_DELETE) {
+            pending.values.putAll(values);
+        }
+    }
+
+    /** Queues the deletion of a row. */
+    synchronized void delete(long id) {
+        PendingWrite pending = mPending.get(id);
+        if (pending != null && pending.op == OP_INSERT) {
+            // It never made it to the database
+            mPending.remove(id);
+        } else if (pending != null) {
+            pending.op = OP_DELETE;
+            pending.values = null;
+        } else {
+            enqueueLocked(id, new PendingWrite(OP_DELETE, null));
+        }
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    private void enqueueLocked(long id, PendingWrite write) {
+        if (mPending.isEmpty()) {
+            mTimer.postDelayed(mScheduleFlush, mDelayMillis);
+        }
+        mPending.put(id, write);
+    }
+
+    /**
+     * Writes everything queued so far in one transaction, on the calling thread, and returns
+     * once it is written. The writes taken out of the queue are owned by this call until each
+     * of them is written, or has failed on its own, see {@link #applyOneByOne}; nothing thrown
+     * by the provider escapes.
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            final ArrayList<ContentProviderOperation> ops;
+            final long[] ids;
+            final boolean notify;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                mTimer.removeCallbacks(mScheduleFlush);
+                ops = new ArrayList<ContentProviderOperation>(mPending.size());
+                ids = new long[mPending.size()];
+                for (Map.Entry<Long, PendingWrite> entry : mPending.entrySet()) {
+                    ids[ops.size()] = entry.getKey();
+                    ops.add(toOperation(entry.getKey(), entry.getValue()));
+                }
+                mPending.clear();
+                notify = mNotify;
+                mNotify = false;
+            }
+
+            try {
+                mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Could not write " + ops.size() + " changes together", e);
+                applyOneByOne(ops, ids);
+            } catch (OperationApplicationException e) {
+                Log.w(TAG, "Could not write " + ops.size() + " changes together", e);
+                applyOneByOne(ops, ids);
+            } catch (RuntimeException e) {
+                // The provider runs in this process, so its SQLiteExceptions and
+                // IllegalArgumentExceptions come through as they are
+                Log.w(TAG, "Could not write " + ops.size() + " changes together", e);
+                applyOneByOne(ops, ids);
+            }
+            if (notify) {
+                mResolver.notifyChange(LauncherSettings.Shortcuts.CONTENT_URI, null);
+            }
+        }
+    }
+
+    /**
+     * Writes each change in its own transaction, after the batch failed, so that one bad
+     * change doesn't take all the others with it. Only the changes that fail on their own too
+     * are lost.
+     */
+    private void applyOneByOne(ArrayList<ContentProviderOperation> ops, long[] ids) {
+        final ArrayList<ContentProviderOperation> single =
+                new ArrayList<ContentProviderOperation>(1);
+        for (int i = 0; i < ops.size(); i++) {
+            single.clear();
+            single.add(ops.get(i));
+            try {
+                mResolver.applyBatch(LauncherProvider.AUTHORITY, single);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Could not write the change of row " + ids[i], e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Could not write the change of row " + ids[i], e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not write the change of row " + ids[i], e);
+            }
+        }
+    }
+
+    private static ContentProviderOperation toOperation(long id, PendingWrite write) {
+        switch (write.op) {
+            case OP_INSERT:
+                return ContentProviderOperation.newInsert(
+                        LauncherSettings.Shortcuts.CONTENT_URI_NO_NOTIFICATION)
+                        .withValues(write.values).build();
+            case OP_UPDATE:
+                return ContentProviderOperation.newUpdate(
+                        LauncherSettings.Shortcuts.getContentUri(id, false))
+                        .withValues(write.values).build();
+            default:
+                return ContentProviderOperation.newDelete(
+                        LauncherSettings.Shortcuts.getContentUri(id, false)).build();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameBudgetTest {
+    private static final long MS = 1000000L;
+    private static final long FRAME = 16 * MS;
+
+    @Test
+    public void itemsToBind_initialUntilMeasured() {
+        FrameBudget budget = new FrameBudget(FRAME, 6);
+        assertEquals(6, budget.itemsToBind(0, 40));
+        assertEquals(4, budget.itemsToBind(0, 4));
+        assertEquals(0, budget.itemsToBind(0, 0));
+    }
+
+    @Test
+    public void itemsToBind_fitsRemainingFrame() {
+        FrameBudget budget = new FrameBudget(FRAME, 6);
+        budget.onBound(4, 4 * MS);
+        budget.onFrame(100 * MS);
+
+        // 14ms of the frame can be used, 1ms an item
+        assertEquals(14, budget.itemsToBind(100 * MS, 40));
+        assertEquals(4, budget.itemsToBind(110 * MS, 40));
+        // Unseen frames went by, 10ms into the current one
+        assertEquals(4, budget.itemsToBind(100 * MS + 3 * FRAME + 10 * MS, 40));
+        // Past the budget, one at a time
+        assertEquals(1, budget.itemsToBind(115 * MS, 40));
+        assertEquals(3, budget.itemsToBind(100 * MS, 3));
+    }
+
+    @Test
+    public void onBound_adaptsToCost() {
+        FrameBudget budget = new FrameBudget(FRAME, 6);
+        budget.onBound(2, 20 * MS);
+        // Slower than a frame, still makes progress
+        assertEquals(1, budget.itemsToBind(0, 40));
+
+        for (int i = 0; i < 50; i++) {
+            budget.onBound(10, MS);
+        }
+        assertTrue(budget.itemsToBind(0, 1000) > 50);
+    }
+}
@@ -0,0 +1,195 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded tests for the request coalescing used by IconCache.
+ */
+public class InFlightRequestsTest {
+    private static final int THREADS = 16;
+    private static final int KEYS = 64;
+    private static final int REQUESTS_PER_THREAD = 5000;
+
+    /**
+     * Mirrors IconCache.getEntry(): look up, load through the in-flight map on a miss, then
+     * insert. Every key must be loaded exactly once no matter how the threads interleave.
+     */
+    @Test
+    public void stress_eachKeyLoadedOnce() throws Exception {
+        final InFlightRequests<Integer, Object> inFlight = new InFlightRequests<Integer, Object>();
+        final ConcurrentHashMap<Integer, Object> cache = new ConcurrentHashMap<Integer, Object>();
+        final AtomicInteger[] loads = new AtomicInteger[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            loads[i] = new AtomicInteger();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                            final Integer key = (i * 31 + seed * 17) % KEYS;
+                            Object value = cache.get(key);
+                            if (value == null) {
+                                value = inFlight.get(key, new Callable<Object>() {
+                                    public Object call() {
+                                        Object cached = cache.get(key);
+                                        if (cached != null) {
+                                            return cached;
+                                        }
+                                        loads[key].incrementAndGet();
+                                        Object loaded = new Object();
+                                        cache.put(key, loaded);
+                                        return loaded;
+                                    }
+                                });
+                            }
+                            assertSame(cache.get(key), value);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertFalse("stress test timed out", thread.isAlive());
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("loads of key " + i, 1, loads[i].get());
+        }
+        assertEquals(0, inFlight.size());
+    }
+
+    /**
+     * Callers asking for a key while it is loading wait for that load and share its result.
+     */
+    @Test
+    public void sameKey_waitsForSingleLoad() throws Exception {
+        final InFlightRequests<String, Object> inFlight = new InFlightRequests<String, Object>();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> loader = new Callable<Object>() {
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return new Object();
+            }
+        };
+
+        final Object[] results = new Object[THREADS];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    results[index] = inFlight.get("key", loader);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            if (t == 0) {
+                assertTrue(loading.await(10, TimeUnit.SECONDS));
+            }
+        }
+
+        // Wait until everybody is parked on the running load
+        for (Thread thread : threads.subList(1, threads.size())) {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (thread.getState() != Thread.State.WAITING
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertEquals(1, loads.get());
+        for (Object result : results) {
+            assertNotNull(result);
+            assertSame(results[0], result);
+        }
+    }
+
+    /**
+     * Loads for different keys don't block each other: the load of "a" can only finish once
+     * the load of "b" has started.
+     */
+    @Test
+    public void differentKeys_loadConcurrently() throws Exception {
+        final InFlightRequests<String, String> inFlight = new InFlightRequests<String, String>();
+        final CountDownLatch bStarted = new CountDownLatch(1);
+        final AtomicReference<String> a = new AtomicReference<String>();
+
+        Thread thread = new Thread() {
+            public void run() {
+                a.set(inFlight.get("a", new Callable<String>() {
+                    public String call() throws Exception {
+                        return bStarted.await(10, TimeUnit.SECONDS) ? "a" : "timeout";
+                    }
+                }));
+            }
+        };
+        thread.start();
+
+        String b = inFlight.get("b", new Callable<String>() {
+            public String call() {
+                bStarted.countDown();
+                return "b";
+            }
+        });
+        thread.join(TimeUnit.SECONDS.toMillis(20));
+
+        assertEquals("b", b);
+        assertEquals("a", a.get());
+    }
+
+    @Test
+    public void failedLoad_isRethrownAndNotKept() {
+        final InFlightRequests<String, String> inFlight = new InFlightRequests<String, String>();
+        try {
+            inFlight.get("key", new Callable<String>() {
+                public String call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            fail("expected the loader exception");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(0, inFlight.size());
+        assertEquals("ok", inFlight.get("key", new Callable<String>() {
+            public String call() {
+                return "ok";
+            }
+        }));
+    }
+}
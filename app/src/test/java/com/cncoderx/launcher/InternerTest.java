@@ -0,0 +1,143 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the content interning shared by the icon holders.
+ */
+public class InternerTest {
+    // Size of a 48x48 ARGB_8888 icon
+    private static final int ICON_BYTES = 48 * 48 * 4;
+
+    /**
+     * Interns byte arrays, standing in for the pixels of the bitmaps that {@link BitmapInterner}
+     * interns, which need a device.
+     */
+    private static Interner<byte[]> newInterner() {
+        return new Interner<byte[]>() {
+            @Override
+            protected long hash(byte[] value) {
+                return Arrays.hashCode(value);
+            }
+
+            @Override
+            protected boolean sameContent(byte[] a, byte[] b) {
+                return Arrays.equals(a, b);
+            }
+
+            @Override
+            protected int sizeOf(byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    private static byte[] icon(int seed) {
+        byte[] pixels = new byte[ICON_BYTES];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i * 31 + seed * 17);
+        }
+        return pixels;
+    }
+
+    /**
+     * A typical drawer: a few apps with several activities sharing an icon, and a number of
+     * activities without an icon that all render the default one.
+     */
+    @Test
+    public void identicalIcons_occupyMemoryOnce() {
+        Interner<byte[]> interner = newInterner();
+        List<byte[]> loaded = new ArrayList<byte[]>();
+        int distinct = 40;
+        for (int app = 0; app < distinct; app++) {
+            int activities = 1 + app % 3;
+            for (int a = 0; a < activities; a++) {
+                loaded.add(icon(app));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            loaded.add(icon(-1));
+        }
+        distinct++;
+
+        long before = 0;
+        List<byte[]> interned = new ArrayList<byte[]>();
+        for (byte[] bytes : loaded) {
+            before += bytes.length;
+            interned.add(interner.intern(bytes));
+        }
+
+        long expectedSaved = (long) (loaded.size() - distinct) * ICON_BYTES;
+        assertEquals(distinct, interner.size());
+        assertEquals(loaded.size() - distinct, interner.getHitCount());
+        final long saved = interner.getBytesSaved();
+        assertEquals(loaded.size() + " icons, " + distinct + " distinct: saved " + saved
+                + " of " + before + " bytes", expectedSaved, saved);
+        for (int i = 0; i < loaded.size(); i++) {
+            assertTrue(Arrays.equals(loaded.get(i), interned.get(i)));
+            int first = 0;
+            while (!Arrays.equals(loaded.get(first), loaded.get(i))) {
+                first++;
+            }
+            assertSame(interned.get(first), interned.get(i));
+        }
+    }
+
+    @Test
+    public void internTwice_isNotCountedAsSaved() {
+        Interner<byte[]> interner = newInterner();
+        byte[] bytes = icon(1);
+        assertSame(bytes, interner.intern(bytes));
+        assertSame(bytes, interner.intern(bytes));
+        assertEquals(0, interner.getHitCount());
+        assertEquals(0, interner.getBytesSaved());
+        assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void hashCollisions_keepDifferentContentApart() {
+        Interner<byte[]> interner = new Interner<byte[]>() {
+            @Override
+            protected long hash(byte[] value) {
+                return 0;
+            }
+
+            @Override
+            protected boolean sameContent(byte[] a, byte[] b) {
+                return Arrays.equals(a, b);
+            }
+
+            @Override
+            protected int sizeOf(byte[] value) {
+                return value.length;
+            }
+        };
+        byte[] a = icon(1);
+        byte[] b = icon(2);
+        assertSame(a, interner.intern(a));
+        assertSame(b, interner.intern(b));
+        assertSame(a, interner.intern(icon(1)));
+        assertSame(b, interner.intern(icon(2)));
+        assertEquals(2, interner.size());
+        assertEquals(2L * ICON_BYTES, interner.getBytesSaved());
+    }
+
+    @Test
+    public void clear_forgetsValuesAndStatistics() {
+        Interner<byte[]> interner = newInterner();
+        byte[] first = icon(1);
+        interner.intern(first);
+        interner.intern(icon(1));
+        interner.clear();
+        assertEquals(0, interner.size());
+        assertEquals(0, interner.getBytesSaved());
+        byte[] second = icon(1);
+        assertSame(second, interner.intern(second));
+    }
+}
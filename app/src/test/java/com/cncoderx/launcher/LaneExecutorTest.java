@@ -0,0 +1,191 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LaneExecutorTest {
+
+    /** Blocks the worker until released, so that tasks can be queued up in a known state. */
+    private static CountDownLatch block(LaneExecutor executor, LaneExecutor.Lane lane)
+            throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.post(lane, new Runnable() {
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static void drain(LaneExecutor executor) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.postBarrier(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void higherPriorityLane_overtakesQueuedWork() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane high = executor.newLane("high", 2);
+        LaneExecutor.Lane low = executor.newLane("low", 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        CountDownLatch release = block(executor, low);
+        executor.post(low, record(log, "low1"));
+        executor.post(low, record(log, "low2"));
+        executor.post(high, record(log, "high1"));
+        executor.post(low, record(log, "low3"));
+        executor.post(high, record(log, "high2"));
+        release.countDown();
+        drain(executor);
+
+        assertEquals(Arrays.asList("high1", "high2", "low1", "low2", "low3"), log);
+    }
+
+    @Test
+    public void runsAfter_keepsPostingOrderAcrossLanes() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane load = executor.newLane("load", 3);
+        LaneExecutor.Lane mutation = executor.newLane("mutation", 2);
+        LaneExecutor.Lane persistence = executor.newLane("persistence", 1);
+        load.runsAfter(persistence);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        CountDownLatch release = block(executor, mutation);
+        executor.post(mutation, record(log, "update"));
+        executor.post(persistence, record(log, "write1"));
+        executor.post(persistence, record(log, "write2"));
+        executor.post(load, record(log, "load"));
+        executor.post(persistence, record(log, "write3"));
+        release.countDown();
+        drain(executor);
+
+        // The load waits for the writes posted before it, but not for the update or write3
+        assertEquals(Arrays.asList("write1", "write2", "load", "update", "write3"), log);
+    }
+
+    /** The lanes of LauncherModel: a reload never runs before the model updates queued first. */
+    @Test
+    public void runsAfter_loadNeverOvertakesMutation() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane load = executor.newLane("load", 3);
+        LaneExecutor.Lane mutation = executor.newLane("mutation", 2);
+        LaneExecutor.Lane persistence = executor.newLane("persistence", 1);
+        LaneExecutor.Lane maintenance = executor.newLane("maintenance", 0);
+        load.runsAfter(persistence);
+        load.runsAfter(mutation);
+        mutation.runsAfter(persistence);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        CountDownLatch release = block(executor, maintenance);
+        executor.post(persistence, record(log, "write"));
+        executor.post(mutation, record(log, "add"));
+        executor.post(load, record(log, "load1"));
+        executor.post(mutation, record(log, "update"));
+        executor.post(load, record(log, "load2"));
+        release.countDown();
+        drain(executor);
+
+        assertEquals(Arrays.asList("write", "add", "load1", "update", "load2"), log);
+    }
+
+    @Test
+    public void barrier_waitsForEverythingPostedBefore() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane high = executor.newLane("high", 2);
+        LaneExecutor.Lane low = executor.newLane("low", 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        CountDownLatch release = block(executor, high);
+        executor.post(low, record(log, "low1"));
+        executor.postBarrier(record(log, "barrier"));
+        executor.post(high, record(log, "high1"));
+        executor.post(low, record(log, "low2"));
+        release.countDown();
+        drain(executor);
+
+        assertEquals(Arrays.asList("low1", "barrier", "high1", "low2"), log);
+    }
+
+    @Test
+    public void runsAfter_rejectsCycles() {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane a = executor.newLane("a", 3);
+        LaneExecutor.Lane b = executor.newLane("b", 2);
+        LaneExecutor.Lane c = executor.newLane("c", 1);
+        a.runsAfter(b);
+        b.runsAfter(c);
+        try {
+            c.runsAfter(a);
+            fail("expected the cycle to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void stats_reportDepthAndCompletions() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane high = executor.newLane("high", 2);
+        LaneExecutor.Lane low = executor.newLane("low", 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        CountDownLatch release = block(executor, high);
+        for (int i = 0; i < 5; i++) {
+            executor.post(low, record(log, "low" + i));
+        }
+        assertEquals(5, low.getStats().depth);
+        release.countDown();
+        drain(executor);
+
+        LaneExecutor.LaneStats stats = low.getStats();
+        assertEquals(0, stats.depth);
+        assertEquals(5, stats.maxDepth);
+        assertEquals(5, stats.completed);
+        assertEquals(1, high.getStats().completed);
+        assertEquals(2, executor.getStats().size());
+        assertEquals("high", executor.getStats().get(0).name);
+    }
+
+    @Test
+    public void isCurrentThread_onlyOnWorker() throws Exception {
+        final LaneExecutor executor = new LaneExecutor("test");
+        LaneExecutor.Lane lane = executor.newLane("lane", 1);
+        final boolean[] onWorker = new boolean[1];
+        executor.post(lane, new Runnable() {
+            public void run() {
+                onWorker[0] = executor.isCurrentThread();
+            }
+        });
+        drain(executor);
+        assertTrue(onWorker[0]);
+        assertFalse(executor.isCurrentThread());
+    }
+}
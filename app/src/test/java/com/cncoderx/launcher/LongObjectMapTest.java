@@ -0,0 +1,78 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(-1, "b"));
+        assertEquals("a", map.put(1, "c"));
+        assertEquals(2, map.size());
+        assertEquals("c", map.get(1));
+        assertEquals("b", map.get(-1));
+        assertNull(map.get(2));
+
+        assertEquals("c", map.remove(1));
+        assertNull(map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(1, map.size());
+        assertEquals(-1, map.keyAt(0));
+        assertEquals("b", map.valueAt(0));
+
+        try {
+            map.put(3, null);
+            fail("expected null values to be rejected");
+        } catch (NullPointerException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        // Keys in a small range so that probe sequences collide and wrap
+        Random random = new Random(42);
+        LongObjectMap<Long> map = new LongObjectMap<Long>();
+        HashMap<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(300) * 1024L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        HashMap<Long, Long> iterated = new HashMap<Long, Long>();
+        for (int i = 0; i < map.size(); i++) {
+            iterated.put(map.keyAt(i), map.valueAt(i));
+        }
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void clear_keepsWorking() {
+        LongObjectMap<String> map = new LongObjectMap<String>(2);
+        for (long i = 0; i < 100; i++) {
+            map.put(i, "v" + i);
+        }
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(5));
+        map.put(5, "x");
+        assertEquals("x", map.get(5));
+        assertEquals(1, map.size());
+    }
+}
@@ -0,0 +1,64 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OccupancyGridTest {
+
+    @Test
+    public void spans_reportFirstConflict() {
+        OccupancyGrid grid = new OccupancyGrid(4, 4);
+        grid.set(1, 1, 2, 2, true);
+        assertTrue(grid.isOccupied(2, 2));
+        assertFalse(grid.isOccupied(3, 2));
+        assertEquals(-1, grid.findOccupied(0, 0, 4, 1));
+        assertEquals(1 * 4 + 2, grid.findOccupied(2, 0, 2, 3));
+        assertFalse(grid.isVacant(0, 0, 2, 2));
+        assertTrue(grid.isVacant(3, 0, 1, 4));
+        // Doesn't fit
+        assertFalse(grid.isVacant(3, 3, 2, 1));
+
+        grid.set(1, 1, 1, 2, false);
+        assertTrue(grid.isVacant(0, 0, 2, 4));
+        assertTrue(grid.isOccupied(2, 1));
+    }
+
+    @Test
+    public void spans_crossWords() {
+        OccupancyGrid grid = new OccupancyGrid(130, 2);
+        grid.set(60, 1, 70, 1, true);
+        assertTrue(grid.isOccupied(63, 1));
+        assertTrue(grid.isOccupied(64, 1));
+        assertTrue(grid.isOccupied(129, 1));
+        assertFalse(grid.isOccupied(59, 1));
+        assertEquals(130 + 60, grid.findOccupied(0, 0, 130, 2));
+        assertEquals(130 + 128, grid.findOccupied(128, 0, 2, 2));
+        assertTrue(grid.isVacant(0, 0, 130, 1));
+
+        // Clipped to the grid
+        grid.set(120, 0, 50, 5, true);
+        assertTrue(grid.isOccupied(129, 0));
+        assertFalse(grid.isOccupied(119, 0));
+    }
+
+    @Test
+    public void findVacant_rowMajor() {
+        OccupancyGrid grid = new OccupancyGrid(4, 3);
+        grid.set(0, 0, 3, 1, true);
+        grid.set(1, 1, 1, 1, true);
+        int[] vacant = new int[2];
+
+        assertTrue(grid.findVacant(vacant, 1, 1));
+        assertEquals(3, vacant[0]);
+        assertEquals(0, vacant[1]);
+
+        assertTrue(grid.findVacant(vacant, 2, 2));
+        assertEquals(2, vacant[0]);
+        assertEquals(1, vacant[1]);
+
+        assertFalse(grid.findVacant(vacant, 4, 2));
+        grid.clear();
+        assertTrue(grid.findVacant(vacant, 4, 3));
+    }
+}
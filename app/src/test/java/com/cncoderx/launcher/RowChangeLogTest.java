@@ -0,0 +1,57 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RowChangeLogTest {
+
+    @Test
+    public void changesSince_reportLastOpPerRow() {
+        RowChangeLog log = new RowChangeLog(16);
+        log.record(1, RowChangeLog.OP_INSERT);
+        long loaded = log.getSequence();
+        log.record(2, RowChangeLog.OP_INSERT);
+        log.record(1, RowChangeLog.OP_UPDATE);
+        log.record(3, RowChangeLog.OP_UPDATE);
+        log.record(3, RowChangeLog.OP_DELETE);
+        log.record(1, RowChangeLog.OP_UPDATE);
+
+        RowChangeLog.Delta delta = log.getChangesSince(loaded);
+        assertEquals(log.getSequence(), delta.sequence);
+        assertEquals(2, delta.changed.size());
+        assertTrue(delta.changed.contains(1L));
+        assertTrue(delta.changed.contains(2L));
+        assertEquals(1, delta.removed.size());
+        assertTrue(delta.removed.contains(3L));
+
+        assertTrue(log.getChangesSince(delta.sequence).isEmpty());
+    }
+
+    @Test
+    public void changesSince_nullOnceForgotten() {
+        RowChangeLog log = new RowChangeLog(4);
+        long loaded = log.getSequence();
+        for (int i = 0; i < 4; i++) {
+            log.record(i, RowChangeLog.OP_INSERT);
+        }
+        assertEquals(4, log.getChangesSince(loaded).changed.size());
+
+        log.record(4, RowChangeLog.OP_INSERT);
+        assertNull(log.getChangesSince(loaded));
+        assertEquals(4, log.getChangesSince(loaded + 1).changed.size());
+    }
+
+    @Test
+    public void invalidate_forgetsEverything() {
+        RowChangeLog log = new RowChangeLog(16);
+        log.record(1, RowChangeLog.OP_INSERT);
+        long loaded = log.getSequence();
+        log.invalidate();
+        assertNull(log.getChangesSince(loaded));
+
+        long reloaded = log.getSequence();
+        log.record(2, RowChangeLog.OP_UPDATE);
+        assertTrue(log.getChangesSince(reloaded).changed.contains(2L));
+    }
+}
@@ -0,0 +1,65 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class SortKeysTest {
+    private static final String[] LABELS = {
+            "Calendar", "calendar", "Camera", "Café", "Cafe", "Éclair", "eclair", "Zebra",
+            "zoo", "Ärzte", "Arzt", "Ørsted", "Ostrich", "1Password", "", "Ab", "A b",
+            "Straße", "Strasse", "日历", "相机", "Фото", "фон",
+    };
+
+    private static int signum(int value) {
+        return value < 0 ? -1 : value > 0 ? 1 : 0;
+    }
+
+    /** Byte comparison of sort keys has to agree with the collator, in several locales. */
+    @Test
+    public void compare_matchesCollator() {
+        Locale saved = Locale.getDefault();
+        try {
+            for (Locale locale : new Locale[] { Locale.US, Locale.GERMANY, Locale.FRANCE,
+                    new Locale("sv", "SE"), Locale.CHINA }) {
+                Locale.setDefault(locale);
+                Collator collator = Collator.getInstance(locale);
+                for (String a : LABELS) {
+                    for (String b : LABELS) {
+                        assertEquals(locale + ": " + a + " vs " + b,
+                                signum(collator.compare(a, b)),
+                                signum(SortKeys.compare(SortKeys.forLabel(a),
+                                        SortKeys.forLabel(b))));
+                    }
+                }
+            }
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void compare_isUnsigned() {
+        assertTrue(SortKeys.compare(new byte[] { (byte) 0x80 }, new byte[] { 0x7f }) > 0);
+        assertTrue(SortKeys.compare(new byte[] { 1 }, new byte[] { 1, 0 }) < 0);
+        assertEquals(0, SortKeys.compare(new byte[] { 1, 2 }, new byte[] { 1, 2 }));
+    }
+
+    @Test
+    public void sort_ordersItemsByKeyAndIsStable() {
+        List<String> items = new ArrayList<String>(Arrays.asList("c", "a1", "b", "a2"));
+        List<byte[]> keys = new ArrayList<byte[]>();
+        keys.add(new byte[] { 3 });
+        keys.add(new byte[] { 1 });
+        keys.add(new byte[] { 2 });
+        keys.add(new byte[] { 1 });
+        SortKeys.sort(items, keys);
+        assertEquals(Arrays.asList("a1", "a2", "b", "c"), items);
+    }
+}
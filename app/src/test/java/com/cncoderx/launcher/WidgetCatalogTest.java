@@ -0,0 +1,95 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class WidgetCatalogTest {
+
+    /** Items are "package/label" strings. */
+    private static class FakeSource implements WidgetCatalog.Source {
+        final ArrayList<String> items = new ArrayList<String>();
+        final ArrayList<Set<String>> loads = new ArrayList<Set<String>>();
+
+        @Override
+        public List<Object> load(Set<String> packages) {
+            loads.add(packages);
+            ArrayList<Object> result = new ArrayList<Object>();
+            for (String item : items) {
+                if (packages == null || packages.contains(getPackageName(item))) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String getPackageName(Object item) {
+            return ((String) item).split("/")[0];
+        }
+
+        @Override
+        public String getLabel(Object item) {
+            return ((String) item).split("/")[1];
+        }
+    }
+
+    @Test
+    public void load_sortsByLabel() {
+        FakeSource source = new FakeSource();
+        source.items.addAll(Arrays.asList("b/Clock", "a/Weather", "c/alarm", "a/Calendar"));
+        WidgetCatalog catalog = new WidgetCatalog(source);
+        assertFalse(catalog.isLoaded());
+
+        assertEquals(Arrays.<Object>asList("c/alarm", "a/Calendar", "b/Clock", "a/Weather"),
+                catalog.load());
+        assertTrue(catalog.isLoaded());
+        assertEquals(Arrays.<Object>asList("a/Calendar", "a/Weather"),
+                catalog.getItems(Collections.singleton("a")));
+    }
+
+    @Test
+    public void update_onlyReloadsChangedPackages() {
+        FakeSource source = new FakeSource();
+        source.items.addAll(Arrays.asList("a/Calendar", "b/Clock", "c/Notes", "d/Zoo"));
+        WidgetCatalog catalog = new WidgetCatalog(source);
+        catalog.load();
+
+        source.items.remove("b/Clock");
+        source.items.add("b/Alarm");
+        source.items.add("b/World clock");
+        source.items.remove("c/Notes");
+        source.items.add("e/Music");
+        assertEquals(Arrays.<Object>asList("b/Alarm", "e/Music", "b/World clock"),
+                catalog.update(Arrays.asList("b", "c", "e")));
+        // Only the changed packages are loaded again
+        assertEquals(new HashSet<String>(Arrays.asList("b", "c", "e")), source.loads.get(1));
+
+        assertEquals(Arrays.<Object>asList("b/Alarm", "a/Calendar", "e/Music", "b/World clock",
+                "d/Zoo"), catalog.getAll());
+        assertEquals(5, catalog.size());
+    }
+
+    @Test
+    public void update_beforeLoadLoadsAll() {
+        FakeSource source = new FakeSource();
+        source.items.addAll(Arrays.asList("a/Calendar", "b/Clock"));
+        WidgetCatalog catalog = new WidgetCatalog(source);
+
+        assertEquals(Arrays.<Object>asList("b/Clock"),
+                catalog.update(Collections.singleton("b")));
+        assertNull(source.loads.get(0));
+        assertEquals(2, catalog.size());
+
+        catalog.invalidate();
+        assertFalse(catalog.isLoaded());
+        assertEquals(0, catalog.size());
+    }
+}
@@ -0,0 +1,87 @@
+package com.cncoderx.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WorkspaceSnapshotTest {
+
+    private static WorkspaceSnapshot.Entry entry(long id, String title) {
+        WorkspaceSnapshot.Entry entry = new WorkspaceSnapshot.Entry();
+        entry.id = id;
+        entry.itemType = 1;
+        entry.screen = 2;
+        entry.cellX = 3;
+        entry.cellY = (int) id;
+        entry.spanX = 1;
+        entry.spanY = 1;
+        entry.profileSerial = 10;
+        entry.title = title;
+        entry.intent = "#Intent;component=com.example/.Main" + id + ";end";
+        return entry;
+    }
+
+    @Test
+    public void decode_returnsEncodedEntries() {
+        List<WorkspaceSnapshot.Entry> entries =
+                Arrays.asList(entry(1, "Mail"), entry(2, null), entry(3, "Café"));
+        List<WorkspaceSnapshot.Entry> decoded =
+                WorkspaceSnapshot.decode(WorkspaceSnapshot.encode(entries));
+
+        assertEquals(3, decoded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            WorkspaceSnapshot.Entry expected = entries.get(i);
+            WorkspaceSnapshot.Entry actual = decoded.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.itemType, actual.itemType);
+            assertEquals(expected.screen, actual.screen);
+            assertEquals(expected.cellX, actual.cellX);
+            assertEquals(expected.cellY, actual.cellY);
+            assertEquals(expected.spanX, actual.spanX);
+            assertEquals(expected.spanY, actual.spanY);
+            assertEquals(expected.profileSerial, actual.profileSerial);
+            assertEquals(expected.title, actual.title);
+            assertEquals(expected.intent, actual.intent);
+        }
+    }
+
+    @Test
+    public void encode_keepsStringsTooLongForWriteUtf() {
+        WorkspaceSnapshot.Entry entry = entry(1, "Mail");
+        StringBuilder intent = new StringBuilder("#Intent;component=com.example/.Main;S.extra=");
+        while (intent.length() < 70000) {
+            intent.append("é");
+        }
+        entry.intent = intent.append(";end").toString();
+
+        List<WorkspaceSnapshot.Entry> decoded =
+                WorkspaceSnapshot.decode(WorkspaceSnapshot.encode(Arrays.asList(entry)));
+        assertEquals(1, decoded.size());
+        assertEquals(entry.intent, decoded.get(0).intent);
+    }
+
+    @Test
+    public void decode_emptySnapshot() {
+        byte[] data = WorkspaceSnapshot.encode(new ArrayList<WorkspaceSnapshot.Entry>());
+        assertEquals(0, WorkspaceSnapshot.decode(data).size());
+    }
+
+    @Test
+    public void decode_rejectsDamagedData() {
+        byte[] data = WorkspaceSnapshot.encode(Arrays.asList(entry(1, "Mail"), entry(2, "Maps")));
+
+        assertNull(WorkspaceSnapshot.decode(null));
+        assertNull(WorkspaceSnapshot.decode(Arrays.copyOf(data, data.length - 1)));
+        assertNull(WorkspaceSnapshot.decode(Arrays.copyOf(data, data.length + 1)));
+        byte[] flipped = data.clone();
+        flipped[30] ^= 1;
+        assertNull(WorkspaceSnapshot.decode(flipped));
+        byte[] version = data.clone();
+        version[7]++;
+        assertNull(WorkspaceSnapshot.decode(version));
+    }
+}